@@ -32,12 +32,11 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Vibrator;
-import android.speech.tts.TextToSpeech;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
-import java.util.Locale;
+import java.io.File;
 
 import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
 
@@ -45,8 +44,8 @@ import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
  * Manages alert audio and vibration and text-to-speech. Runs as a service so that
  * it can continue to play if another activity overrides the CellBroadcastListActivity.
  */
-public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnInitListener,
-        TextToSpeech.OnUtteranceCompletedListener {
+public class CellBroadcastAlertAudio extends Service
+        implements CellBroadcastTtsSession.Listener {
     private static final String TAG = "CellBroadcastAlertAudio";
 
     /** Action to start playing alert audio/vibration/speech. */
@@ -86,14 +85,27 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
     private int mState;
 
-    private TextToSpeech mTts;
-    private boolean mTtsEngineReady;
+    private CellBroadcastTtsSession mTtsSession;
+
+    private CellBroadcastSpeechCache mSpeechCache;
+    /** Incremented for each alert, to ignore speech cache results for an earlier alert. */
+    private int mSpeechGeneration;
+    /** Cache key of the message body, or null until the cache lookup is done. */
+    private String mSpeechKey;
+    /** Cached synthesized speech for the message body, or null if not cached. */
+    private File mCachedSpeech;
+    /** File to synthesize the message body into, or null if not to be synthesized. */
+    private File mSpeechTempFile;
+    /** File the message body is being synthesized into, or null. */
+    private File mSynthesisFile;
+    private MediaPlayer mSpeechPlayer;
 
     private String mMessageBody;
     private String mMessageLanguage;
     private boolean mTtsLanguageSupported;
     private boolean mEnableVibrate;
     private boolean mEnableAudio;
+    private long mTraceKey;
 
     private Vibrator mVibrator;
     private MediaPlayer mMediaPlayer;
@@ -114,7 +126,7 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
                     if (DBG) log("ALERT_SOUND_FINISHED");
                     stop();     // stop alert sound
                     // if we can speak the message text
-                    if (mMessageBody != null && mTtsEngineReady && mTtsLanguageSupported) {
+                    if (canSpeak()) {
                         mHandler.sendMessageDelayed(mHandler.obtainMessage(ALERT_PAUSE_FINISHED),
                                 PAUSE_DURATION_BEFORE_SPEAKING_MSEC);
                         mState = STATE_PAUSING;
@@ -126,9 +138,14 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
                 case ALERT_PAUSE_FINISHED:
                     if (DBG) log("ALERT_PAUSE_FINISHED");
-                    if (mMessageBody != null && mTtsEngineReady && mTtsLanguageSupported) {
+                    if (mMessageBody != null && mCachedSpeech != null) {
+                        if (DBG) log("Playing cached speech for: " + mMessageBody);
+                        playCachedSpeech();
+                        mState = STATE_SPEAKING;
+                    } else if (canSpeak()) {
                         if (DBG) log("Speaking broadcast text: " + mMessageBody);
-                        mTts.speak(mMessageBody, TextToSpeech.QUEUE_FLUSH, null);
+                        cancelSynthesis();
+                        mTtsSession.speak(mMessageBody);
                         mState = STATE_SPEAKING;
                     } else {
                         loge("TTS engine not ready or language not supported");
@@ -155,21 +172,12 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     };
 
     /**
-     * Callback from TTS engine after initialization.
-     * @param status {@link TextToSpeech#SUCCESS} or {@link TextToSpeech#ERROR}.
+     * Callback from {@link CellBroadcastTtsSession} when the TTS engine is ready.
      */
     @Override
-    public void onInit(int status) {
-        if (DBG) log("onInit() TTS engine status: " + status);
-        if (status == TextToSpeech.SUCCESS) {
-            mTtsEngineReady = true;
-            // try to set the TTS language to match the broadcast
-            setTtsLanguage();
-        } else {
-            mTtsEngineReady = false;
-            mTts = null;
-            loge("onInit() TTS engine error: " + status);
-        }
+    public void onEngineReady() {
+        // try to set the TTS language to match the broadcast
+        setTtsLanguage();
     }
 
     /**
@@ -177,30 +185,144 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
      * mTtsLanguageSupported will be updated based on the response.
      */
     private void setTtsLanguage() {
-        if (mMessageLanguage != null) {
-            if (DBG) log("Setting TTS language to '" + mMessageLanguage + '\'');
-            int result = mTts.setLanguage(new Locale(mMessageLanguage));
-            // success values are >= 0, failure returns negative value
-            if (DBG) log("TTS setLanguage() returned: " + result);
-            mTtsLanguageSupported = result >= 0;
-        } else {
-            // try to use the default TTS language for broadcasts with no language specified
-            if (DBG) log("No language specified in broadcast: using default");
-            mTtsLanguageSupported = true;
+        mTtsLanguageSupported = mTtsSession.setLanguage(mMessageLanguage);
+        startSynthesis();
+    }
+
+    /**
+     * Synthesize the message into the cache while the attention signal plays, once the cache
+     * lookup found no cached speech and the engine supports the language.
+     */
+    private void startSynthesis() {
+        if (mTtsLanguageSupported && mSpeechTempFile != null && mSynthesisFile == null
+                && mMessageBody != null && mState != STATE_SPEAKING) {
+            if (mTtsSession.synthesizeToFile(mMessageBody, mSpeechTempFile)) {
+                mSynthesisFile = mSpeechTempFile;
+            }
+            mSpeechTempFile = null;
         }
     }
 
+    /** Look up the cached speech for the message body in the background. */
+    private void lookUpCachedSpeech() {
+        final int generation = ++mSpeechGeneration;
+        mSpeechCache.lookup(mMessageBody, mMessageLanguage,
+                new CellBroadcastSpeechCache.LookupCallback() {
+                    @Override
+                    public void onLookupDone(String key, File cachedFile, File tempFile) {
+                        if (generation != mSpeechGeneration) {
+                            return;     // a later alert, or the service was destroyed
+                        }
+                        mSpeechKey = key;
+                        mCachedSpeech = cachedFile;
+                        mSpeechTempFile = tempFile;
+                        if (mTtsSession.isEngineReady()) {
+                            startSynthesis();
+                        }
+                    }
+                });
+    }
+
+    /** Returns true if the message body can be spoken after the attention signal. */
+    private boolean canSpeak() {
+        return mMessageBody != null && (mCachedSpeech != null
+                || (mTtsSession.isEngineReady() && mTtsLanguageSupported));
+    }
+
     /**
-     * Callback from TTS engine.
-     * @param utteranceId the identifier of the utterance.
+     * Callback from {@link CellBroadcastTtsSession} when the message has been spoken.
      */
     @Override
-    public void onUtteranceCompleted(String utteranceId) {
+    public void onSpeechDone() {
         stopSelf();
     }
 
+    /**
+     * Callback from {@link CellBroadcastTtsSession} when the message has been synthesized
+     * to {@link #mSynthesisFile}.
+     */
+    @Override
+    public void onSynthesisDone(boolean success) {
+        if (mSynthesisFile == null) {
+            return;
+        }
+        if (success) {
+            final int generation = mSpeechGeneration;
+            mSpeechCache.put(mSpeechKey, mSynthesisFile,
+                    new CellBroadcastSpeechCache.PutCallback() {
+                        @Override
+                        public void onPutDone(File cachedFile) {
+                            if (generation == mSpeechGeneration) {
+                                mCachedSpeech = cachedFile;
+                            }
+                        }
+                    });
+        } else {
+            mSpeechCache.discard(mSynthesisFile);
+        }
+        mSynthesisFile = null;
+    }
+
+    /** Ignore the synthesis in progress, if any, and delete its file. */
+    private void cancelSynthesis() {
+        if (mSynthesisFile != null) {
+            mTtsSession.cancelSynthesis();
+            mSpeechCache.discard(mSynthesisFile);
+            mSynthesisFile = null;
+        }
+    }
+
+    /** Play the cached speech for the message body, falling back to the TTS engine. */
+    private void playCachedSpeech() {
+        mSpeechPlayer = new MediaPlayer();
+        mSpeechPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+            public void onCompletion(MediaPlayer mp) {
+                stopSelf();
+            }
+        });
+        mSpeechPlayer.setOnErrorListener(new OnErrorListener() {
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                loge("Error occurred while playing cached speech.");
+                stopSelf();
+                return true;
+            }
+        });
+        try {
+            // same stream as the TTS engine uses by default
+            mSpeechPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mSpeechPlayer.setDataSource(mCachedSpeech.getAbsolutePath());
+            mSpeechPlayer.prepare();
+            mSpeechPlayer.start();
+        } catch (Exception ex) {
+            loge("Failed to play cached speech: " + ex);
+            releaseSpeechPlayer();
+            mCachedSpeech = null;
+            if (canSpeak()) {
+                mTtsSession.speak(mMessageBody);
+            } else {
+                stopSelf();
+            }
+        }
+    }
+
+    private void releaseSpeechPlayer() {
+        if (mSpeechPlayer != null) {
+            try {
+                mSpeechPlayer.stop();
+            } catch (IllegalStateException e) {
+                loge("exception trying to stop speech player");
+            }
+            mSpeechPlayer.release();
+            mSpeechPlayer = null;
+        }
+    }
+
     @Override
     public void onCreate() {
+        // normally decoded already when the application started
+        CellBroadcastAlertTone.warmUp(this);
+        mTtsSession = CellBroadcastTtsSession.getInstance(this);
+        mSpeechCache = CellBroadcastSpeechCache.getInstance(this);
         mVibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
         mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
         // Listen for incoming calls to kill the alarm.
@@ -216,15 +338,10 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         stop();
         // Stop listening for incoming calls.
         mTelephonyManager.listen(mPhoneStateListener, 0);
-        // shutdown TTS engine
-        if (mTts != null) {
-            try {
-                mTts.shutdown();
-            } catch (IllegalStateException e) {
-                // catch "Unable to retrieve AudioTrack pointer for stop()" exception
-                loge("exception trying to shutdown text-to-speech");
-            }
-        }
+        cancelSynthesis();
+        mSpeechGeneration++;    // ignore speech cache results still to come
+        // keep the TTS engine bound for the next alert until it has been idle for a while
+        mTtsSession.release(this);
         // release CPU wake lock acquired by CellBroadcastAlertService
         CellBroadcastAlertWakeLock.releaseCpuLock();
     }
@@ -254,6 +371,7 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         if (intent.getBooleanExtra(ALERT_AUDIO_ETWS_VIBRATE_EXTRA, false)) {
             mEnableVibrate = true;  // force enable vibration for ETWS alerts
         }
+        mTraceKey = intent.getLongExtra(CellBroadcastAlertTrace.TRACE_KEY_EXTRA, 0);
 
         switch (mAudioManager.getRingerMode()) {
             case AudioManager.RINGER_MODE_SILENT:
@@ -273,10 +391,15 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
                 break;
         }
 
+        cancelSynthesis();
+        mSpeechGeneration++;
+        mSpeechKey = null;
+        mCachedSpeech = null;
+        mSpeechTempFile = null;
         if (mMessageBody != null && mEnableAudio) {
-            if (mTts == null) {
-                mTts = new TextToSpeech(this, this);
-            } else if (mTtsEngineReady) {
+            lookUpCachedSpeech();
+            mTtsSession.acquire(this);
+            if (mTtsSession.isEngineReady()) {
                 setTtsLanguage();
             }
         }
@@ -314,35 +437,20 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         }
 
         if (mEnableAudio) {
-            // future optimization: reuse media player object
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setOnErrorListener(new OnErrorListener() {
-                public boolean onError(MediaPlayer mp, int what, int extra) {
-                    loge("Error occurred while playing audio.");
-                    mp.stop();
-                    mp.release();
-                    mMediaPlayer = null;
-                    return true;
-                }
-            });
-
-            try {
-                // Check if we are in a call. If we are, play the alert
-                // sound at a low volume to not disrupt the call.
-                if (mTelephonyManager.getCallState()
-                        != TelephonyManager.CALL_STATE_IDLE) {
-                    log("in call: reducing volume");
-                    mMediaPlayer.setVolume(IN_CALL_VOLUME, IN_CALL_VOLUME);
-                }
-
-                // start playing alert audio (unless master volume is vibrate only or silent).
-                setDataSourceFromResource(getResources(), mMediaPlayer,
-                        R.raw.attention_signal);
-                mAudioManager.requestAudioFocus(null, AudioManager.STREAM_NOTIFICATION,
-                        AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
-                startAlarm(mMediaPlayer);
-            } catch (Exception ex) {
-                loge("Failed to play alert sound: " + ex);
+            // Check if we are in a call. If we are, play the alert
+            // sound at a low volume to not disrupt the call.
+            boolean inCall = mTelephonyManager.getCallState()
+                    != TelephonyManager.CALL_STATE_IDLE;
+            if (inCall) {
+                log("in call: reducing volume");
+            }
+            mAudioManager.requestAudioFocus(null, AudioManager.STREAM_NOTIFICATION,
+                    AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
+            // play the pre-decoded attention signal if it's ready
+            if (!CellBroadcastAlertTone.start(inCall ? IN_CALL_VOLUME : 1.0f, mTraceKey)) {
+                playWithMediaPlayer(inCall);
+                // MediaPlayer has no callback for the first frame
+                CellBroadcastAlertTrace.stamp(mTraceKey, CellBroadcastAlertTrace.STAGE_FIRST_AUDIO);
             }
         }
 
@@ -351,6 +459,37 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         mState = STATE_ALERTING;
     }
 
+    /**
+     * Play the attention signal with a new MediaPlayer, when the pre-decoded signal is not
+     * available.
+     * @param inCall true to play the alert sound at a low volume
+     */
+    private void playWithMediaPlayer(boolean inCall) {
+        mMediaPlayer = new MediaPlayer();
+        mMediaPlayer.setOnErrorListener(new OnErrorListener() {
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                loge("Error occurred while playing audio.");
+                mp.stop();
+                mp.release();
+                mMediaPlayer = null;
+                return true;
+            }
+        });
+
+        try {
+            if (inCall) {
+                mMediaPlayer.setVolume(IN_CALL_VOLUME, IN_CALL_VOLUME);
+            }
+
+            // start playing alert audio (unless master volume is vibrate only or silent).
+            setDataSourceFromResource(getResources(), mMediaPlayer,
+                    R.raw.attention_signal);
+            startAlarm(mMediaPlayer);
+        } catch (Exception ex) {
+            loge("Failed to play alert sound: " + ex);
+        }
+    }
+
     // Do the common stuff when starting the alarm.
     private static void startAlarm(MediaPlayer player)
             throws java.io.IOException, IllegalArgumentException, IllegalStateException {
@@ -402,6 +541,7 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
         if (mState == STATE_ALERTING) {
             // Stop audio playing
+            CellBroadcastAlertTone.stop();
             if (mMediaPlayer != null) {
                 try {
                     mMediaPlayer.stop();
@@ -415,13 +555,9 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
             // Stop vibrator
             mVibrator.cancel();
-        } else if (mState == STATE_SPEAKING && mTts != null) {
-            try {
-                mTts.stop();
-            } catch (IllegalStateException e) {
-                // catch "Unable to retrieve AudioTrack pointer for stop()" exception
-                loge("exception trying to stop text-to-speech");
-            }
+        } else if (mState == STATE_SPEAKING) {
+            releaseSpeechPlayer();
+            mTtsSession.stopSpeaking();
         }
         mAudioManager.abandonAudioFocus(null);
         mState = STATE_IDLE;
@@ -23,7 +23,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -36,6 +38,7 @@ import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.Button;
@@ -43,6 +46,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -62,6 +66,15 @@ public class CellBroadcastAlertFullScreen extends Activity {
     /** Intent extra for non-emergency alerts sent when user selects the notification. */
     static final String FROM_NOTIFICATION_EXTRA = "from_notification";
 
+    /**
+     * Intent extra with the delivery time of the oldest unread non-emergency alert, to load
+     * the unread alerts older than the one passed in the intent from the database.
+     */
+    static final String UNREAD_SINCE_EXTRA = "unread_since";
+
+    /** Maximum number of older unread alerts to load from the database. */
+    private static final int MAX_UNREAD_MESSAGES = 50;
+
     /** List of cell broadcast messages to display (oldest to newest). */
     ArrayList<CellBroadcastMessage> mMessageList;
 
@@ -282,11 +295,17 @@ public class CellBroadcastAlertFullScreen extends Activity {
             clearNotification(intent);
         }
 
-        if (mMessageList != null) {
+        if (mMessageList != null && !mMessageList.isEmpty()) {
             Log.d(TAG, "onCreate loaded message list of size " + mMessageList.size());
         } else {
             Log.e(TAG, "onCreate failed to get message list from saved Bundle");
             finish();
+            return;
+        }
+
+        if (savedInstanceState == null) {
+            traceFirstFrame(getLatestMessage());
+            loadUnreadMessages(getIntent());
         }
 
         // For emergency alerts, keep screen on so the user can read it, unless this is a
@@ -302,6 +321,23 @@ public class CellBroadcastAlertFullScreen extends Activity {
         updateAlertText(message);
     }
 
+    /**
+     * Record the {@link CellBroadcastAlertTrace#STAGE_FIRST_FRAME} stage for the message
+     * when the window is next drawn.
+     */
+    private void traceFirstFrame(final CellBroadcastMessage message) {
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                CellBroadcastAlertTrace.stamp(message, CellBroadcastAlertTrace.STAGE_FIRST_FRAME);
+                return true;
+            }
+        });
+    }
+
     /**
      * Called by {@link CellBroadcastAlertService} to add a new alert to the stack.
      * @param intent The new intent containing one or more {@link CellBroadcastMessage}s.
@@ -314,8 +350,10 @@ public class CellBroadcastAlertFullScreen extends Activity {
             Log.d(TAG, "onNewIntent called with message list of size " + newMessageList.size());
             mMessageList.addAll(newMessageList);
             updateAlertText(getLatestMessage());
+            traceFirstFrame(getLatestMessage());
             // If the new intent was sent from a notification, dismiss it.
             clearNotification(intent);
+            loadUnreadMessages(intent);
         } else {
             Log.e(TAG, "onNewIntent called without SMS_CB_MESSAGE_EXTRA, ignoring");
         }
@@ -328,8 +366,80 @@ public class CellBroadcastAlertFullScreen extends Activity {
             NotificationManager notificationManager =
                     (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
             notificationManager.cancel(CellBroadcastAlertService.NOTIFICATION_ID);
-            CellBroadcastReceiverApp.clearNewMessageList();
+            CellBroadcastReceiverApp.clearNewMessages();
+        }
+    }
+
+    /**
+     * If the intent was sent from a notification for several unread alerts, load the unread
+     * alerts older than the one passed in the intent from the database in the background,
+     * and add them below the current alert.
+     */
+    private void loadUnreadMessages(Intent intent) {
+        final long since = intent.getLongExtra(UNREAD_SINCE_EXTRA, 0);
+        ArrayList<CellBroadcastMessage> newMessageList = intent.getParcelableArrayListExtra(
+                CellBroadcastMessage.SMS_CB_MESSAGE_EXTRA);
+        if (since == 0 || newMessageList == null || newMessageList.isEmpty()) {
+            return;
+        }
+        final long before = newMessageList.get(0).getDeliveryTime();
+
+        new AsyncTask<Void, Void, ArrayList<CellBroadcastMessage>>() {
+            @Override
+            protected ArrayList<CellBroadcastMessage> doInBackground(Void... params) {
+                ArrayList<CellBroadcastMessage> unread = new ArrayList<CellBroadcastMessage>();
+                Cursor c = getContentResolver().query(CellBroadcastContentProvider.CONTENT_URI,
+                        Telephony.CellBroadcasts.QUERY_COLUMNS,
+                        Telephony.CellBroadcasts.MESSAGE_READ + "=0 AND "
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + ">=? AND "
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + "<?",
+                        new String[] {Long.toString(since), Long.toString(before)},
+                        Telephony.CellBroadcasts.DELIVERY_TIME + " DESC");
+                if (c == null) {
+                    return unread;
+                }
+                try {
+                    while (unread.size() < MAX_UNREAD_MESSAGES && c.moveToNext()) {
+                        CellBroadcastMessage message = CellBroadcastMessage.createFromCursor(c);
+                        if (!CellBroadcastConfigService.isEmergencyAlertMessage(message)) {
+                            unread.add(message);
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                Collections.reverse(unread);    // oldest to newest
+                return unread;
+            }
+
+            @Override
+            protected void onPostExecute(ArrayList<CellBroadcastMessage> unread) {
+                if (isFinishing() || mMessageList.isEmpty()) {
+                    return;
+                }
+                Log.d(TAG, "loaded " + unread.size() + " older unread messages");
+                ArrayList<CellBroadcastMessage> merged = new ArrayList<CellBroadcastMessage>(
+                        unread.size() + mMessageList.size());
+                for (CellBroadcastMessage message : unread) {
+                    if (!containsMessage(mMessageList, message)) {
+                        merged.add(message);
+                    }
+                }
+                merged.addAll(mMessageList);
+                mMessageList = merged;
+            }
+        }.execute();
+    }
+
+    private static boolean containsMessage(ArrayList<CellBroadcastMessage> messageList,
+            CellBroadcastMessage message) {
+        long deliveryTime = message.getDeliveryTime();
+        for (int i = 0, n = messageList.size(); i < n; i++) {
+            if (messageList.get(i).getDeliveryTime() == deliveryTime) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
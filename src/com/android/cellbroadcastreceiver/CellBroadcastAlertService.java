@@ -26,23 +26,27 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.SystemProperties;
 import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.telephony.CellBroadcastMessage;
 import android.telephony.SmsCbCmasInfo;
-import android.telephony.SmsCbLocation;
 import android.telephony.SmsCbMessage;
 import android.telephony.SubscriptionManager;
 import android.util.Log;
 
 import com.android.internal.telephony.PhoneConstants;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashSet;
 
 /**
  * This service manages the display and animation of broadcast messages.
@@ -56,6 +60,9 @@ public class CellBroadcastAlertService extends Service {
     /** Intent action to display alert dialog/notification, after verifying the alert is new. */
     static final String SHOW_NEW_ALERT_ACTION = "cellbroadcastreceiver.SHOW_NEW_ALERT";
 
+    /** Intent extra for the message ID to save once the broadcast has been written. */
+    private static final String MESSAGE_ID_EXTRA = "message_id";
+
     /** Use the same notification ID for non-emergency alerts. */
     static final int NOTIFICATION_ID = 1;
 
@@ -68,58 +75,63 @@ public class CellBroadcastAlertService extends Service {
     /** Check for system property to enable/disable duplicate detection.  */
     static boolean mUseDupDetection = SystemProperties.getBoolean(CB_DUP_DETECTION, true);
 
-    /** Container for message ID and geographical scope, for duplicate message detection. */
-    private static final class MessageServiceCategoryAndScope {
-        private final int mServiceCategory;
-        private final int mSerialNumber;
-        private final SmsCbLocation mLocation;
-
-        MessageServiceCategoryAndScope(int serviceCategory, int serialNumber,
-                SmsCbLocation location) {
-            mServiceCategory = serviceCategory;
-            mSerialNumber = serialNumber;
-            mLocation = location;
-        }
+    /** system property for the time in ms after which a message ID is no longer a duplicate. */
+    private static final String CB_DUP_EXPIRY_TIME = "persist.cb.dup_expiry_time";
 
-        @Override
-        public int hashCode() {
-            return mLocation.hashCode() + 5 * mServiceCategory + 7 * mSerialNumber;
-        }
+    /** Default duplicate detection window: a rebroadcast within 24 hours is a duplicate. */
+    private static final long DEFAULT_DUP_EXPIRY_TIME = 24 * 60 * 60 * 1000L;
 
-        @Override
-        public boolean equals(Object o) {
-            if (o == this) {
-                return true;
-            }
-            if (o instanceof MessageServiceCategoryAndScope) {
-                MessageServiceCategoryAndScope other = (MessageServiceCategoryAndScope) o;
-                return (mServiceCategory == other.mServiceCategory &&
-                        mSerialNumber == other.mSerialNumber &&
-                        mLocation.equals(other.mLocation));
-            }
-            return false;
-        }
+    /** Maximum number of message IDs to save before removing the oldest message ID. */
+    private static final int MAX_MESSAGE_ID_SIZE = 65535;
 
-        @Override
-        public String toString() {
-            return "{mServiceCategory: " + mServiceCategory + " serial number: " + mSerialNumber +
-                    " location: " + mLocation.toString() + '}';
-        }
-    }
+    /** Name of the file in the app's files directory holding the saved message IDs. */
+    private static final String MESSAGE_ID_CACHE_FILE = "message_id_cache";
+
+    /**
+     * Cache of the message IDs of broadcasts that are saved, for duplicate message detection.
+     * A message ID is only saved once its broadcast is journaled or written to the database, so
+     * that a rebroadcast is not dropped as a duplicate of a broadcast lost with the process.
+     */
+    private static CellBroadcastMessageIdCache sCmasIdCache;
 
-    /** Cache of received message IDs, for duplicate message detection. */
-    private static final HashSet<MessageServiceCategoryAndScope> sCmasIdSet =
-            new HashSet<MessageServiceCategoryAndScope>(8);
+    /** Message IDs received by this process, including broadcasts still being saved. */
+    private static CellBroadcastMessageIdCache sReceivedCmasIds;
 
-    /** Maximum number of message IDs to save before removing the oldest message ID. */
-    private static final int MAX_MESSAGE_ID_SIZE = 65535;
+    /** system property for the minimum time in ms between non-emergency notification updates. */
+    private static final String CB_NOTIFICATION_WINDOW = "persist.cb.notification_window";
+
+    /** Default minimum time between non-emergency notification updates. */
+    private static final long DEFAULT_NOTIFICATION_WINDOW = 2000;
 
-    /** List of message IDs received, for removing oldest ID when max message IDs are received. */
-    private static final ArrayList<MessageServiceCategoryAndScope> sCmasIdList =
-            new ArrayList<MessageServiceCategoryAndScope>(8);
+    /**
+     * Minimum time between notification updates for non-emergency broadcasts. The first
+     * broadcast after a quiet period is notified immediately, with sound and vibration. Later
+     * broadcasts within the window are collapsed into one silent update with the latest count.
+     */
+    private static final long sNotificationWindow =
+            SystemProperties.getLong(CB_NOTIFICATION_WINDOW, DEFAULT_NOTIFICATION_WINDOW);
 
-    /** Index of message ID to replace with new message ID when max message IDs are received. */
-    private static int sCmasIdListIndex = 0;
+    // Notification scheduling state, only used on the main thread.
+    private static final Handler sNotificationHandler = new Handler(Looper.getMainLooper());
+    private static long sLastNotificationTime = Long.MIN_VALUE / 2;
+    private static CellBroadcastMessage sPendingNotificationMessage;
+    private static int sEmittedNotificationCount;
+    private static int sSuppressedNotificationCount;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (mUseDupDetection && sCmasIdCache == null) {
+            // Reload message IDs received before the process was killed or the device
+            // rebooted, so that rebroadcasts of an ongoing alert are not shown again.
+            long expiryTime = SystemProperties.getLong(CB_DUP_EXPIRY_TIME,
+                    DEFAULT_DUP_EXPIRY_TIME);
+            sCmasIdCache = CellBroadcastMessageIdCache.open(
+                    new File(getFilesDir(), MESSAGE_ID_CACHE_FILE), MAX_MESSAGE_ID_SIZE,
+                    expiryTime);
+            sReceivedCmasIds = new CellBroadcastMessageIdCache(MAX_MESSAGE_ID_SIZE, expiryTime);
+        }
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -128,23 +140,33 @@ public class CellBroadcastAlertService extends Service {
                 Telephony.Sms.Intents.SMS_CB_RECEIVED_ACTION.equals(action)) {
             handleCellBroadcastIntent(intent);
         } else if (SHOW_NEW_ALERT_ACTION.equals(action)) {
-            try {
-                if (UserHandle.myUserId() ==
-                        ActivityManagerNative.getDefault().getCurrentUser().id) {
-                    showNewAlert(intent);
-                } else {
-                    Log.d(TAG,"Not active user, ignore the alert display");
-                }
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+            handleShowNewAlert(intent);
         } else {
             Log.e(TAG, "Unrecognized intent action: " + action);
         }
         return START_NOT_STICKY;
     }
 
+    private void handleShowNewAlert(Intent intent) {
+        long cmasId = intent.getLongExtra(MESSAGE_ID_EXTRA, 0);
+        if (cmasId != 0 && sCmasIdCache != null) {
+            // the broadcast has been written
+            sCmasIdCache.add(cmasId, System.currentTimeMillis());
+        }
+        try {
+            if (UserHandle.myUserId() ==
+                    ActivityManagerNative.getDefault().getCurrentUser().id) {
+                showNewAlert(intent);
+            } else {
+                Log.d(TAG,"Not active user, ignore the alert display");
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void handleCellBroadcastIntent(Intent intent) {
+        long receivedTime = SystemClock.elapsedRealtime();
         Bundle extras = intent.getExtras();
         if (extras == null) {
             Log.e(TAG, "received SMS_CB_RECEIVED_ACTION with no extras!");
@@ -164,59 +186,54 @@ public class CellBroadcastAlertService extends Service {
                 SubscriptionManager.getPhoneId(defaultSubId));
         int [] subId = SubscriptionManager.getSubId(phoneId);
         cbm.setSubId(subId[0]);
-        if (!isMessageEnabledByUser(cbm)) {
+        CellBroadcastAlertTrace.begin(cbm, intent.getLongExtra(
+                CellBroadcastAlertTrace.RECEIVED_TIME_EXTRA, receivedTime));
+        if (!isMessageEnabledByUser(cbm, phoneId)) {
             Log.d(TAG, "ignoring alert of type " + cbm.getServiceCategory() +
                     " by user preference");
             return;
         }
 
+        long newCmasId = 0;
+        long now = System.currentTimeMillis();
         if (mUseDupDetection) {
             // Check for duplicate message IDs according to CMAS carrier requirements. Message IDs
-            // are stored in volatile memory. If the maximum of 65535 messages is reached, the
-            // message ID of the oldest message is deleted from the list.
-            MessageServiceCategoryAndScope newCmasId = new MessageServiceCategoryAndScope(
-                    message.getServiceCategory(), message.getSerialNumber(), message.getLocation());
-
-            // Add the new message ID to the list. It's okay if this is a duplicate message ID,
-            // because the list is only used for removing old message IDs from the hash set.
-            if (sCmasIdList.size() < MAX_MESSAGE_ID_SIZE) {
-                sCmasIdList.add(newCmasId);
-            } else {
-                // Get oldest message ID from the list and replace with the new message ID.
-                MessageServiceCategoryAndScope oldestCmasId = sCmasIdList.get(sCmasIdListIndex);
-                sCmasIdList.set(sCmasIdListIndex, newCmasId);
-                Log.d(TAG, "message ID limit reached, removing oldest message ID " + oldestCmasId);
-                // Remove oldest message ID from the set.
-                sCmasIdSet.remove(oldestCmasId);
-                if (++sCmasIdListIndex >= MAX_MESSAGE_ID_SIZE) {
-                    sCmasIdListIndex = 0;
-                }
-            }
-            // Set.add() returns false if message ID has already been added
-            if (!sCmasIdSet.add(newCmasId)) {
-                Log.d(TAG, "ignoring duplicate alert with " + newCmasId);
+            // are saved to a memory-mapped file and expire after 24 hours by default. If the
+            // maximum of 65535 messages is reached, the message ID of the oldest message is
+            // deleted from the cache.
+            newCmasId = CellBroadcastMessageIdCache.makeKey(message.getServiceCategory(),
+                    message.getSerialNumber(), message.getLocation());
+
+            // add() returns false if message ID has already been received by this process
+            sCmasIdCache.expire(now);
+            if (sCmasIdCache.contains(newCmasId) || !sReceivedCmasIds.add(newCmasId, now)) {
+                Log.d(TAG, "ignoring duplicate alert with "
+                        + CellBroadcastMessageIdCache.keyToString(newCmasId));
                 return;
             }
         }
+        CellBroadcastAlertTrace.stamp(cbm, CellBroadcastAlertTrace.STAGE_DEDUP);
 
         final Intent alertIntent = new Intent(SHOW_NEW_ALERT_ACTION);
         alertIntent.setClass(this, CellBroadcastAlertService.class);
         alertIntent.putExtra("message", cbm);
 
-        // write to database on a background thread
-        new CellBroadcastContentProvider.AsyncCellBroadcastTask(getContentResolver())
-                .execute(new CellBroadcastContentProvider.CellBroadcastOperation() {
-                    @Override
-                    public boolean execute(CellBroadcastContentProvider provider) {
-                        if (provider.insertNewBroadcast(cbm)) {
-                            // new message, show the alert or notification on UI thread
-                            startService(alertIntent);
-                            return true;
-                        } else {
-                            return false;
-                        }
-                    }
-                });
+        CellBroadcastInsertQueue insertQueue = CellBroadcastInsertQueue.getInstance(this);
+        if (CellBroadcastConfigService.isEmergencyAlertMessage(cbm)) {
+            // Journal the message, which syncs one small record to disk, and start the alert
+            // right away; the database write follows on the insert queue's writer thread, so
+            // the message is saved even if the process dies before the commit.
+            boolean journaled = insertQueue.enqueueShownAlert(cbm, message);
+            handleShowNewAlert(alertIntent);
+            if (journaled && newCmasId != 0) {
+                sCmasIdCache.add(newCmasId, now);
+            }
+        } else {
+            // write to database on the insert queue's writer thread; the notification is
+            // shown, and the message ID saved, once the broadcast has been written
+            alertIntent.putExtra(MESSAGE_ID_EXTRA, newCmasId);
+            insertQueue.enqueue(cbm, message, alertIntent, false);
+        }
     }
 
     private void showNewAlert(Intent intent) {
@@ -236,9 +253,11 @@ public class CellBroadcastAlertService extends Service {
         if (CellBroadcastConfigService.isEmergencyAlertMessage(cbm)) {
             // start alert sound / vibration / TTS and display full-screen alert
             openEmergencyAlertNotification(cbm);
+            CellBroadcastAlertTrace.stamp(cbm, CellBroadcastAlertTrace.STAGE_SHOW_ALERT);
         } else {
             // add notification to the bar
             addToNotificationBar(cbm);
+            CellBroadcastAlertTrace.stamp(cbm, CellBroadcastAlertTrace.STAGE_NOTIFICATION);
         }
     }
 
@@ -247,38 +266,34 @@ public class CellBroadcastAlertService extends Service {
      * and types of notifications that the user is not interested in receiving.
      * This allows us to enable an entire range of message identifiers in the
      * radio and not have to explicitly disable the message identifiers for
-     * test broadcasts. In the unlikely event that the default shared preference
-     * values were not initialized in CellBroadcastReceiverApp, the second parameter
-     * to the getBoolean() calls match the default values in res/xml/preferences.xml.
+     * test broadcasts. The user's settings for the phone are read from the filter mask
+     * maintained by {@link CellBroadcastUserFilter}.
      *
      * @param message the message to check
+     * @param phoneId the phone that received the message
      * @return true if the user has enabled this message type; false otherwise
      */
-    private boolean isMessageEnabledByUser(CellBroadcastMessage message) {
+    private boolean isMessageEnabledByUser(CellBroadcastMessage message, int phoneId) {
+        int filterMask = CellBroadcastUserFilter.getMask(phoneId);
         if (message.isEtwsTestMessage()) {
-            return PreferenceManager.getDefaultSharedPreferences(this)
-                    .getBoolean(CellBroadcastSettings.KEY_ENABLE_ETWS_TEST_ALERTS, false);
+            return (filterMask & CellBroadcastUserFilter.FILTER_ETWS_TEST) != 0;
         }
 
         if (message.isCmasMessage()) {
             switch (message.getCmasMessageClass()) {
                 case SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT:
-                    return PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
-                            CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS, true);
+                    return (filterMask & CellBroadcastUserFilter.FILTER_CMAS_EXTREME_THREAT) != 0;
 
                 case SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT:
-                    return PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
-                            CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS, true);
+                    return (filterMask & CellBroadcastUserFilter.FILTER_CMAS_SEVERE_THREAT) != 0;
 
                 case SmsCbCmasInfo.CMAS_CLASS_CHILD_ABDUCTION_EMERGENCY:
-                    return PreferenceManager.getDefaultSharedPreferences(this)
-                            .getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS, true);
+                    return (filterMask & CellBroadcastUserFilter.FILTER_CMAS_AMBER) != 0;
 
                 case SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST:
                 case SmsCbCmasInfo.CMAS_CLASS_CMAS_EXERCISE:
                 case SmsCbCmasInfo.CMAS_CLASS_OPERATOR_DEFINED_USE:
-                    return PreferenceManager.getDefaultSharedPreferences(this)
-                            .getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_TEST_ALERTS, false);
+                    return (filterMask & CellBroadcastUserFilter.FILTER_CMAS_TEST) != 0;
 
                 default:
                     return true;    // presidential-level CMAS alerts are always enabled
@@ -286,6 +301,9 @@ public class CellBroadcastAlertService extends Service {
         }
 
         if (message.getServiceCategory() == 50) {
+            if ((filterMask & CellBroadcastUserFilter.FILTER_CHANNEL_50) == 0) {
+                return false;   // received before the channel was disabled in the radio
+            }
             // save latest area info broadcast for Settings display and send as broadcast
             CellBroadcastReceiverApp.setLatestAreaInfo(message);
             Intent intent = new Intent(CB_AREA_INFO_RECEIVED_ACTION);
@@ -313,6 +331,8 @@ public class CellBroadcastAlertService extends Service {
         // start audio/vibration/speech service for emergency alerts
         Intent audioIntent = new Intent(this, CellBroadcastAlertAudio.class);
         audioIntent.setAction(CellBroadcastAlertAudio.ACTION_START_ALERT_AUDIO);
+        audioIntent.putExtra(CellBroadcastAlertTrace.TRACE_KEY_EXTRA,
+                CellBroadcastAlertTrace.getKey(message));
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
         int duration;   // alert audio duration in ms
@@ -339,6 +359,8 @@ public class CellBroadcastAlertService extends Service {
         String messageBody = message.getMessageBody();
 
         if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ALERT_SPEECH, true)) {
+            // bind the TTS engine now, so it is ready when the attention signal ends
+            CellBroadcastTtsSession.getInstance(this).prepare();
             audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_MESSAGE_BODY, messageBody);
 
             String language = message.getLanguageCode();
@@ -371,53 +393,104 @@ public class CellBroadcastAlertService extends Service {
     }
 
     /**
-     * Add the new alert to the notification bar (non-emergency alerts), or launch a
-     * high-priority immediate intent for emergency alerts.
+     * Add the new alert to the notification bar (non-emergency alerts). The notification is
+     * updated at most once per {@link #sNotificationWindow}.
      * @param message the alert to display
      */
     private void addToNotificationBar(CellBroadcastMessage message) {
+        int unreadCount = CellBroadcastReceiverApp.addNewMessage(message);
+        long now = SystemClock.elapsedRealtime();
+        if (unreadCount == 1 || (sPendingNotificationMessage == null
+                && now - sLastNotificationTime >= sNotificationWindow)) {
+            // first broadcast of a burst, or since the user opened the notification: alert
+            // the user right away
+            sNotificationHandler.removeCallbacksAndMessages(null);
+            sPendingNotificationMessage = null;
+            postNotification(this, message, unreadCount, true);
+            return;
+        }
+
+        sSuppressedNotificationCount++;
+        if (sPendingNotificationMessage == null) {
+            final Context context = getApplicationContext();
+            sNotificationHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    CellBroadcastMessage latestMessage = sPendingNotificationMessage;
+                    sPendingNotificationMessage = null;
+                    int count = CellBroadcastReceiverApp.getUnreadCount();
+                    if (count != 0) {   // else the user has opened the notification already
+                        postNotification(context, latestMessage, count, false);
+                    }
+                }
+            }, sLastNotificationTime + sNotificationWindow - now);
+        }
+        sPendingNotificationMessage = message;
+    }
+
+    /**
+     * Post or update the notification for unread non-emergency alerts.
+     * @param context the context to use
+     * @param message the latest alert
+     * @param unreadCount the number of unread alerts
+     * @param alert true to play the default sound/vibration/lights; false to update silently
+     */
+    private static void postNotification(Context context, CellBroadcastMessage message,
+            int unreadCount, boolean alert) {
+        sLastNotificationTime = SystemClock.elapsedRealtime();
+        sEmittedNotificationCount++;
+
         int channelTitleId = CellBroadcastResources.getDialogTitleResource(message);
-        CharSequence channelName = getText(channelTitleId);
+        CharSequence channelName = context.getText(channelTitleId);
         String messageBody = message.getMessageBody();
 
-        // Pass the list of unread non-emergency CellBroadcastMessages
-        ArrayList<CellBroadcastMessage> messageList = CellBroadcastReceiverApp
-                .addNewMessageToList(message);
+        // Pass only the latest message, and the delivery time of the oldest unread message so
+        // that the older unread messages can be loaded from the database. This keeps the
+        // intent small no matter how many messages are unread.
+        ArrayList<CellBroadcastMessage> messageList = new ArrayList<CellBroadcastMessage>(1);
+        messageList.add(message);
 
         // Create intent to show the new messages when user selects the notification.
-        Intent intent = createDisplayMessageIntent(this, CellBroadcastAlertDialog.class,
+        Intent intent = createDisplayMessageIntent(context, CellBroadcastAlertDialog.class,
                 messageList);
         intent.putExtra(CellBroadcastAlertFullScreen.FROM_NOTIFICATION_EXTRA, true);
+        if (unreadCount > 1) {
+            intent.putExtra(CellBroadcastAlertFullScreen.UNREAD_SINCE_EXTRA,
+                    CellBroadcastReceiverApp.getFirstUnreadTime());
+        }
 
-        PendingIntent pi = PendingIntent.getActivity(this, NOTIFICATION_ID, intent,
+        PendingIntent pi = PendingIntent.getActivity(context, NOTIFICATION_ID, intent,
                 PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
 
-        // use default sound/vibration/lights for non-emergency broadcasts
-        Notification.Builder builder = new Notification.Builder(this)
+        Notification.Builder builder = new Notification.Builder(context)
                 .setSmallIcon(R.drawable.ic_notify_alert)
                 .setTicker(channelName)
                 .setWhen(System.currentTimeMillis())
                 .setContentIntent(pi)
                 .setCategory(Notification.CATEGORY_SYSTEM)
                 .setPriority(Notification.PRIORITY_HIGH)
-                .setColor(getResources().getColor(R.color.notification_color))
-                .setVisibility(Notification.VISIBILITY_PUBLIC)
-                .setDefaults(Notification.DEFAULT_ALL);
+                .setColor(context.getResources().getColor(R.color.notification_color))
+                .setVisibility(Notification.VISIBILITY_PUBLIC);
 
-        builder.setDefaults(Notification.DEFAULT_ALL);
+        if (alert) {
+            // use default sound/vibration/lights for non-emergency broadcasts
+            builder.setDefaults(Notification.DEFAULT_ALL);
+        } else {
+            // collapsed update within a burst: don't alert again
+            builder.setOnlyAlertOnce(true);
+        }
 
-        // increment unread alert count (decremented when user dismisses alert dialog)
-        int unreadCount = messageList.size();
         if (unreadCount > 1) {
             // use generic count of unread broadcasts if more than one unread
-            builder.setContentTitle(getString(R.string.notification_multiple_title));
-            builder.setContentText(getString(R.string.notification_multiple, unreadCount));
+            builder.setContentTitle(context.getString(R.string.notification_multiple_title));
+            builder.setContentText(context.getString(R.string.notification_multiple,
+                    unreadCount));
         } else {
             builder.setContentTitle(channelName).setContentText(messageBody);
         }
 
         NotificationManager notificationManager =
-            (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
+            (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
 
         notificationManager.notify(NOTIFICATION_ID, builder.build());
     }
@@ -434,4 +507,33 @@ public class CellBroadcastAlertService extends Service {
     public IBinder onBind(Intent intent) {
         return null;    // clients can't bind to this service
     }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("CellBroadcastAlertService:");
+        pw.println(" duplicate detection: " + (mUseDupDetection ? "enabled" : "disabled"));
+        if (sCmasIdCache != null) {
+            sCmasIdCache.dump(pw);
+        }
+        CellBroadcastReceiver.dumpPhoneTypeCache(pw);
+        CellBroadcastAlertTrace.dump(pw);
+        CellBroadcastAlertTone.dump(pw);
+        CellBroadcastTtsSession ttsSession = CellBroadcastTtsSession.peekInstance();
+        if (ttsSession != null) {
+            ttsSession.dump(pw);
+        }
+        CellBroadcastSpeechCache speechCache = CellBroadcastSpeechCache.peekInstance();
+        if (speechCache != null) {
+            speechCache.dump(pw);
+        }
+        pw.println(" notification updates: emitted=" + sEmittedNotificationCount
+                + " suppressed=" + sSuppressedNotificationCount
+                + " window=" + sNotificationWindow + "ms");
+        CellBroadcastInsertQueue insertQueue = CellBroadcastInsertQueue.peekInstance();
+        if (insertQueue != null) {
+            pw.println(" insert queue:");
+            insertQueue.dump(pw);
+        }
+        CellBroadcastRetentionService.dump(this, pw);
+    }
 }
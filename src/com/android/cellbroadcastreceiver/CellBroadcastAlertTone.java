@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Pre-decoded attention signal for {@link CellBroadcastAlertAudio}. The attention signal is
+ * decoded to PCM on a background thread when the process starts and loaded into a static
+ * {@link AudioTrack} that loops over the whole signal, so that starting the alert tone is a
+ * {@link AudioTrack#play} call instead of preparing a new {@link android.media.MediaPlayer}
+ * on the main thread. Callers fall back to {@code MediaPlayer} while the tone is not ready.
+ *
+ * <p>The time from the alert being shown to the first frame played is measured with a
+ * notification marker on the track and reported by {@link #dump}.
+ *
+ * <p>All methods except {@link #warmUp} and {@link #dump} must be called on the main thread.
+ */
+final class CellBroadcastAlertTone {
+    private static final String TAG = "CellBroadcastAlertTone";
+
+    /** Decoder timeout in microseconds. */
+    private static final long DECODE_TIMEOUT_US = 10000;
+
+    /** Don't keep a decoded signal larger than this in memory. */
+    private static final int MAX_PCM_BYTES = 2 * 1024 * 1024;
+
+    /** Track holding the decoded attention signal, or null until decoded. */
+    private static volatile AudioTrack sTrack;
+
+    private static boolean sWarmUpStarted;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /** {@link CellBroadcastAlertTrace} key of the alert for the tone that is playing. */
+    private static long sTraceKey;
+
+    /** Number of alerts played with MediaPlayer instead, for dumpsys. Main thread only. */
+    private static int sFallbackCount;
+
+    private static final AudioTrack.OnPlaybackPositionUpdateListener sMarkerListener =
+            new AudioTrack.OnPlaybackPositionUpdateListener() {
+                @Override
+                public void onMarkerReached(AudioTrack track) {
+                    CellBroadcastAlertTrace.stamp(sTraceKey,
+                            CellBroadcastAlertTrace.STAGE_FIRST_AUDIO);
+                }
+
+                @Override
+                public void onPeriodicNotification(AudioTrack track) {
+                }
+            };
+
+    private CellBroadcastAlertTone() {}
+
+    /**
+     * Decode the attention signal in the background, if not already started. Called when the
+     * application starts.
+     */
+    static synchronized void warmUp(final Context context) {
+        if (sWarmUpStarted) {
+            return;
+        }
+        sWarmUpStarted = true;
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long startTime = SystemClock.elapsedRealtime();
+                AudioTrack track = loadTrack(appContext, R.raw.attention_signal);
+                if (track != null) {
+                    sTrack = track;
+                    Log.d(TAG, "attention signal decoded in "
+                            + (SystemClock.elapsedRealtime() - startTime) + "ms");
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Start looping the attention signal.
+     * @param volume the track volume, from 0.0 to 1.0
+     * @param traceKey the {@link CellBroadcastAlertTrace} key of the alert
+     * @return true if the tone started; false if the caller should play it with MediaPlayer
+     */
+    static boolean start(float volume, long traceKey) {
+        AudioTrack track = sTrack;
+        if (track == null) {
+            if (DBG) Log.d(TAG, "attention signal not decoded yet");
+            sFallbackCount++;
+            return false;
+        }
+        try {
+            track.stop();
+            // rewind to the start of the signal; the loop points are kept
+            track.reloadStaticData();
+            track.setStereoVolume(volume, volume);
+            sTraceKey = traceKey;
+            track.setNotificationMarkerPosition(1);
+            track.setPlaybackPositionUpdateListener(sMarkerListener, sMainHandler);
+            track.play();
+            return true;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "can't start attention signal", e);
+            sFallbackCount++;
+            return false;
+        }
+    }
+
+    /** Stop the attention signal. The track stays loaded for the next alert. */
+    static void stop() {
+        AudioTrack track = sTrack;
+        if (track != null) {
+            try {
+                track.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "exception trying to stop attention signal");
+            }
+        }
+    }
+
+    /**
+     * Decode a raw resource into a static track that loops over the decoded signal.
+     * @return the track, or null if the resource couldn't be decoded
+     */
+    private static AudioTrack loadTrack(Context context, int resId) {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            AssetFileDescriptor afd = context.getResources().openRawResourceFd(resId);
+            try {
+                extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
+                        afd.getLength());
+            } finally {
+                afd.close();
+            }
+            if (extractor.getTrackCount() < 1) {
+                Log.e(TAG, "no audio track in attention signal");
+                return null;
+            }
+            extractor.selectTrack(0);
+            MediaFormat format = extractor.getTrackFormat(0);
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            ByteArrayOutputStream pcm = new ByteArrayOutputStream(64 * 1024);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            byte[] chunk = new byte[0];
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(DECODE_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        ByteBuffer input = codec.getInputBuffer(inputIndex);
+                        int size = extractor.readSampleData(input, 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size,
+                                    extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, DECODE_TIMEOUT_US);
+                if (outputIndex >= 0) {
+                    if (info.size > 0) {
+                        ByteBuffer output = codec.getOutputBuffer(outputIndex);
+                        output.position(info.offset);
+                        if (chunk.length < info.size) {
+                            chunk = new byte[info.size];
+                        }
+                        output.get(chunk, 0, info.size);
+                        pcm.write(chunk, 0, info.size);
+                    }
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        outputDone = true;
+                    }
+                    if (pcm.size() > MAX_PCM_BYTES) {
+                        Log.e(TAG, "attention signal too long to pre-decode");
+                        return null;
+                    }
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                }
+            }
+
+            int frameSize = 2 * channelCount;   // 16-bit PCM
+            int frameCount = pcm.size() / frameSize;
+            if (frameCount == 0) {
+                Log.e(TAG, "attention signal decoded to no audio");
+                return null;
+            }
+            int channelMask = (channelCount == 1) ? AudioFormat.CHANNEL_OUT_MONO
+                    : AudioFormat.CHANNEL_OUT_STEREO;
+            AudioTrack track = new AudioTrack(AudioManager.STREAM_NOTIFICATION, sampleRate,
+                    channelMask, AudioFormat.ENCODING_PCM_16BIT, frameCount * frameSize,
+                    AudioTrack.MODE_STATIC);
+            track.write(pcm.toByteArray(), 0, frameCount * frameSize);
+            if (track.getState() != AudioTrack.STATE_INITIALIZED
+                    || track.setLoopPoints(0, frameCount, -1) != AudioTrack.SUCCESS) {
+                Log.e(TAG, "can't initialize attention signal track");
+                track.release();
+                return null;
+            }
+            return track;
+        } catch (IOException e) {
+            Log.e(TAG, "can't decode attention signal", e);
+            return null;
+        } catch (RuntimeException e) {
+            // MediaCodec and AudioTrack report errors as IllegalStateException
+            Log.e(TAG, "can't decode attention signal", e);
+            return null;
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println(" alert tone: " + (sTrack != null ? "decoded" : "not decoded")
+                + " fallbacks=" + sFallbackCount);
+    }
+}
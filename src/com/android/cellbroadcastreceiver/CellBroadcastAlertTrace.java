@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Intent;
+import android.os.SystemClock;
+import android.telephony.CellBroadcastMessage;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Time taken by each stage of delivering a broadcast, from the broadcast being received by
+ * {@link PrivilegedCellBroadcastReceiver} to the alert tone and the first frame of the alert
+ * being shown. Each stage is stamped with {@link SystemClock#elapsedRealtime} for a trace
+ * keyed by the message identity, and the time since the broadcast was received is kept in a
+ * window of recent samples per stage, reported as percentiles by {@link #dump}.
+ *
+ * <p>A trace is kept for {@link #MAX_TRACE_AGE_MSEC}, so that showing an old broadcast, e.g.
+ * from the notification, is not counted. Each stage is counted once per trace.
+ */
+final class CellBroadcastAlertTrace {
+    private static final String TAG = "CellBroadcastAlertTrace";
+
+    /** Intent extra for the time the broadcast was received by the receiver. */
+    static final String RECEIVED_TIME_EXTRA =
+            "com.android.cellbroadcastreceiver.TRACE_RECEIVED_TIME";
+
+    /** Intent extra for the trace key, for intents without the message. */
+    static final String TRACE_KEY_EXTRA = "com.android.cellbroadcastreceiver.TRACE_KEY";
+
+    /** The duplicate check passed. */
+    static final int STAGE_DEDUP = 0;
+    /** The broadcast was written to the database. */
+    static final int STAGE_DB_INSERT = 1;
+    /** The emergency alert was started by {@link CellBroadcastAlertService}. */
+    static final int STAGE_SHOW_ALERT = 2;
+    /** The notification of a non-emergency broadcast was posted; the last stage for these. */
+    static final int STAGE_NOTIFICATION = 3;
+    /** The first frame of the alert tone was played. */
+    static final int STAGE_FIRST_AUDIO = 4;
+    /** The first frame of the alert window was drawn. */
+    static final int STAGE_FIRST_FRAME = 5;
+
+    private static final String[] STAGE_NAMES = {
+            "dedup", "db insert", "show alert", "notification", "first audio", "first frame"
+    };
+
+    /** Number of recent samples kept per stage. */
+    private static final int WINDOW_SIZE = 128;
+
+    /** Maximum number of traces in progress. */
+    private static final int MAX_TRACES = 32;
+
+    private static final long MAX_TRACE_AGE_MSEC = 60 * 1000;
+
+    /** A broadcast being delivered. */
+    private static final class Trace {
+        final long mReceivedTime;
+        int mStampedStages;
+
+        Trace(long receivedTime) {
+            mReceivedTime = receivedTime;
+        }
+    }
+
+    private static final Object sLock = new Object();
+
+    /** Traces in progress by key; guarded by sLock. */
+    private static final LongSparseArray<Trace> sTraces = new LongSparseArray<Trace>();
+
+    /** Recent samples in milliseconds for each stage, as ring buffers; guarded by sLock. */
+    private static final long[][] sSamples = new long[STAGE_NAMES.length][WINDOW_SIZE];
+    private static final int[] sSampleCounts = new int[STAGE_NAMES.length];
+
+    private CellBroadcastAlertTrace() {}
+
+    /** Returns the trace key for a message. */
+    static long getKey(CellBroadcastMessage message) {
+        return (message.getDeliveryTime() << 32)
+                | ((long) (message.getServiceCategory() & 0xffff) << 16)
+                | (message.getSerialNumber() & 0xffff);
+    }
+
+    /** Stamp the time a broadcast was received on the intent forwarded to the service. */
+    static void markReceived(Intent intent) {
+        intent.putExtra(RECEIVED_TIME_EXTRA, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Start the trace for a message.
+     * @param receivedTime {@link SystemClock#elapsedRealtime} when the broadcast was received
+     */
+    static void begin(CellBroadcastMessage message, long receivedTime) {
+        long key = getKey(message);
+        synchronized (sLock) {
+            long now = SystemClock.elapsedRealtime();
+            for (int i = sTraces.size() - 1; i >= 0; i--) {
+                if (now - sTraces.valueAt(i).mReceivedTime > MAX_TRACE_AGE_MSEC) {
+                    sTraces.removeAt(i);
+                }
+            }
+            if (sTraces.size() >= MAX_TRACES) {
+                // drop the oldest trace
+                int oldest = 0;
+                for (int i = 1; i < sTraces.size(); i++) {
+                    if (sTraces.valueAt(i).mReceivedTime
+                            < sTraces.valueAt(oldest).mReceivedTime) {
+                        oldest = i;
+                    }
+                }
+                sTraces.removeAt(oldest);
+            }
+            sTraces.put(key, new Trace(receivedTime));
+        }
+    }
+
+    static void stamp(CellBroadcastMessage message, int stage) {
+        stamp(getKey(message), stage);
+    }
+
+    /**
+     * Record the time since the broadcast was received for a stage, if the message is being
+     * traced and the stage wasn't recorded yet.
+     */
+    static void stamp(long key, int stage) {
+        long millis;
+        synchronized (sLock) {
+            Trace trace = sTraces.get(key);
+            if (trace == null || (trace.mStampedStages & (1 << stage)) != 0) {
+                return;
+            }
+            millis = SystemClock.elapsedRealtime() - trace.mReceivedTime;
+            if (millis > MAX_TRACE_AGE_MSEC) {
+                sTraces.remove(key);
+                return;
+            }
+            trace.mStampedStages |= 1 << stage;
+            sSamples[stage][sSampleCounts[stage]++ % WINDOW_SIZE] = millis;
+            if (stage == STAGE_FIRST_FRAME || stage == STAGE_NOTIFICATION) {
+                sTraces.remove(key);    // last stage
+            }
+        }
+        if (CellBroadcastReceiver.DBG) {
+            Log.d(TAG, STAGE_NAMES[stage] + ": " + millis + "ms after receive");
+        }
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println(" time since receive (last " + WINDOW_SIZE + " samples):");
+        synchronized (sLock) {
+            for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                int count = Math.min(sSampleCounts[stage], WINDOW_SIZE);
+                pw.print("  " + STAGE_NAMES[stage] + ": count=" + sSampleCounts[stage]);
+                if (count > 0) {
+                    long[] sorted = Arrays.copyOf(sSamples[stage], count);
+                    Arrays.sort(sorted);
+                    pw.print(" p50=" + percentile(sorted, 50) + "ms p95="
+                            + percentile(sorted, 95) + "ms p99=" + percentile(sorted, 99)
+                            + "ms max=" + sorted[count - 1] + "ms");
+                }
+                pw.println();
+            }
+        }
+    }
+
+    /** Returns the nearest-rank percentile of sorted samples. */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (percent * sorted.length + 99) / 100;
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
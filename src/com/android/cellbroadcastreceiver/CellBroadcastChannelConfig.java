@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Desired state of the cell broadcast channels for one subscription.
+ * {@link CellBroadcastConfigService} records the channels to enable and disable with the
+ * same calls it would make on {@link SmsManager}, and {@link #apply} then sends only the
+ * difference from the channels enabled by the previous run.
+ *
+ * <p>The telephony framework keeps the channel ranges enabled by each client and only
+ * removes a range when the same range is disabled, so the enabled channels are always sent
+ * as maximal runs of consecutive message IDs, and a run that changes is enabled again as a
+ * whole before the old run is disabled. The runs enabled for each subscription are saved in
+ * shared preferences together with the boot ID and the process ID of the phone process, since
+ * the framework forgets the ranges when the device reboots or the phone process restarts.
+ */
+final class CellBroadcastChannelConfig {
+    private static final String TAG = "CellBroadcastChannelConfig";
+
+    /** Shared preferences file holding the channels enabled for each subscription. */
+    private static final String PREFS_NAME = "channel_config";
+
+    private static final String KEY_TOKEN = "token_";
+    private static final String KEY_GSM = "gsm_";
+    private static final String KEY_CDMA = "cdma_";
+
+    private static final String BOOT_ID_FILE = "/proc/sys/kernel/random/boot_id";
+    private static final String PHONE_PROCESS = "com.android.phone";
+
+    /** Channels to enable, indexed by RAN type. */
+    private final BitSet[] mEnabled = {new BitSet(), new BitSet()};
+
+    /**
+     * Every range passed to an enable or disable call, packed by {@link #packRange}, to
+     * clear ranges left by an unknown previous configuration.
+     */
+    private final LinkedHashSet<Long> mTouchedRanges = new LinkedHashSet<Long>();
+
+    void enableCellBroadcast(int messageId, int ranType) {
+        enableCellBroadcastRange(messageId, messageId, ranType);
+    }
+
+    void disableCellBroadcast(int messageId, int ranType) {
+        disableCellBroadcastRange(messageId, messageId, ranType);
+    }
+
+    void enableCellBroadcastRange(int startMessageId, int endMessageId, int ranType) {
+        mEnabled[ranType].set(startMessageId, endMessageId + 1);
+        mTouchedRanges.add(packRange(startMessageId, endMessageId, ranType));
+    }
+
+    void disableCellBroadcastRange(int startMessageId, int endMessageId, int ranType) {
+        mEnabled[ranType].clear(startMessageId, endMessageId + 1);
+        mTouchedRanges.add(packRange(startMessageId, endMessageId, ranType));
+    }
+
+    private static long packRange(int startMessageId, int endMessageId, int ranType) {
+        return ((long) ranType << 32) | ((startMessageId & 0xffffL) << 16)
+                | (endMessageId & 0xffffL);
+    }
+
+    /** The channel configuration calls of {@link SmsManager} used by {@link #apply}. */
+    interface Radio {
+        boolean enableCellBroadcastRange(int startMessageId, int endMessageId, int ranType);
+        boolean disableCellBroadcastRange(int startMessageId, int endMessageId, int ranType);
+    }
+
+    /**
+     * Send the changes from the previously enabled channels to the radio.
+     * @param manager the SmsManager for the subscription
+     * @param applied the channels enabled by the previous run, or null if unknown
+     * @return the channels enabled after this run
+     */
+    CellBroadcastChannelConfig apply(final SmsManager manager,
+            CellBroadcastChannelConfig applied) {
+        return apply(new Radio() {
+            @Override
+            public boolean enableCellBroadcastRange(int startMessageId, int endMessageId,
+                    int ranType) {
+                return manager.enableCellBroadcastRange(startMessageId, endMessageId, ranType);
+            }
+
+            @Override
+            public boolean disableCellBroadcastRange(int startMessageId, int endMessageId,
+                    int ranType) {
+                return manager.disableCellBroadcastRange(startMessageId, endMessageId, ranType);
+            }
+        }, applied);
+    }
+
+    /**
+     * Send the changes from the previously enabled channels to the radio. New runs are
+     * enabled before the runs they replace are disabled, so that a channel enabled in both
+     * runs is never dropped, and a run is only disabled once every new run overlapping it has
+     * been enabled. The framework keeps the ranges of each client separately, so the overlap
+     * doesn't affect the channels enabled once the old run is disabled.
+     * @param radio the radio of the subscription
+     * @param applied the channels enabled by the previous run, or null if unknown
+     * @return the channels enabled after this run
+     */
+    CellBroadcastChannelConfig apply(Radio radio, CellBroadcastChannelConfig applied) {
+        CellBroadcastChannelConfig result = new CellBroadcastChannelConfig();
+        int commands = 0;
+        BitSet[] failed = {new BitSet(), new BitSet()};
+
+        for (int ranType = 0; ranType < mEnabled.length; ranType++) {
+            BitSet desired = mEnabled[ranType];
+            BitSet previous = (applied != null) ? applied.mEnabled[ranType] : new BitSet();
+            BitSet enabled = result.mEnabled[ranType];
+
+            // enable new runs
+            for (int start = desired.nextSetBit(0); start >= 0;
+                    start = desired.nextSetBit(start)) {
+                int end = desired.nextClearBit(start) - 1;
+                if (isRun(previous, start, end)) {
+                    enabled.set(start, end + 1);    // unchanged
+                } else {
+                    if (DBG) log("enabling " + ranType + ": " + start + '-' + end);
+                    if (radio.enableCellBroadcastRange(start, end, ranType)) {
+                        enabled.set(start, end + 1);
+                    } else {
+                        Log.e(TAG, "failed to enable " + ranType + ": " + start + '-' + end);
+                        failed[ranType].set(start, end + 1);
+                    }
+                    commands++;
+                }
+                start = end + 1;
+            }
+
+            // disable runs that are no longer enabled, or are now part of a different run,
+            // unless they overlap a new run that couldn't be enabled
+            for (int start = previous.nextSetBit(0); start >= 0;
+                    start = previous.nextSetBit(start)) {
+                int end = previous.nextClearBit(start) - 1;
+                if (!isRun(desired, start, end)) {
+                    if (intersects(failed[ranType], start, end)) {
+                        Log.w(TAG, "keeping " + ranType + ": " + start + '-' + end);
+                        enabled.set(start, end + 1);
+                    } else {
+                        if (DBG) log("disabling " + ranType + ": " + start + '-' + end);
+                        radio.disableCellBroadcastRange(start, end, ranType);
+                        commands++;
+                    }
+                }
+                start = end + 1;
+            }
+        }
+
+        if (applied == null) {
+            // Channels enabled before are unknown: disable every other range this
+            // configuration refers to, so that only the enabled runs remain. Ranges overlapping
+            // a run that couldn't be enabled are left as they are.
+            for (long range : mTouchedRanges) {
+                int ranType = (int) (range >>> 32);
+                int startId = (int) (range >>> 16) & 0xffff;
+                int endId = (int) range & 0xffff;
+                if (!isRun(mEnabled[ranType], startId, endId)
+                        && !intersects(failed[ranType], startId, endId)) {
+                    radio.disableCellBroadcastRange(startId, endId, ranType);
+                    commands++;
+                }
+            }
+        }
+
+        Log.d(TAG, "sent " + commands + " channel configuration commands");
+        return result;
+    }
+
+    /** Returns true if any bit in start..end is set. */
+    private static boolean intersects(BitSet bits, int start, int end) {
+        int next = bits.nextSetBit(start);
+        return next >= 0 && next <= end;
+    }
+
+    /** Returns true if start..end is a maximal run of set bits. */
+    private static boolean isRun(BitSet bits, int start, int end) {
+        return bits.nextClearBit(start) == end + 1 && (start == 0 || !bits.get(start - 1));
+    }
+
+    /**
+     * Load the channels enabled for a subscription by the previous run.
+     * @return the enabled channels, or null if unknown or the radio may have forgotten them
+     */
+    static CellBroadcastChannelConfig loadApplied(Context context, int subId) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String token = getRadioToken();
+        if (token == null || !token.equals(prefs.getString(KEY_TOKEN + subId, null))) {
+            return null;
+        }
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
+        readRanges(config.mEnabled[SmsManager.CELL_BROADCAST_RAN_TYPE_GSM],
+                prefs.getString(KEY_GSM + subId, ""));
+        readRanges(config.mEnabled[SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA],
+                prefs.getString(KEY_CDMA + subId, ""));
+        return config;
+    }
+
+    /** Save the channels enabled for a subscription. */
+    void saveApplied(Context context, int subId) {
+        String token = getRadioToken();
+        SharedPreferences.Editor editor =
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
+        if (token == null) {
+            editor.remove(KEY_TOKEN + subId);
+        } else {
+            editor.putString(KEY_TOKEN + subId, token);
+        }
+        editor.putString(KEY_GSM + subId,
+                rangesToString(mEnabled[SmsManager.CELL_BROADCAST_RAN_TYPE_GSM]));
+        editor.putString(KEY_CDMA + subId,
+                rangesToString(mEnabled[SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA]));
+        editor.apply();
+    }
+
+    /**
+     * Forget the channels enabled for all subscriptions, so that the next run configures all
+     * channels again. Called when the radio is turned off.
+     */
+    static void clearApplied(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static void readRanges(BitSet bits, String ranges) {
+        CellBroadcastChannelRangeTable table = CellBroadcastChannelRangeTable.parse(ranges);
+        for (int i = 0, n = table.size(); i < n; i++) {
+            bits.set(table.getStart(i), table.getEnd(i) + 1);
+        }
+    }
+
+    private static String rangesToString(BitSet bits) {
+        StringBuilder sb = new StringBuilder();
+        for (int start = bits.nextSetBit(0); start >= 0; start = bits.nextSetBit(start)) {
+            int end = bits.nextClearBit(start) - 1;
+            if (sb.length() != 0) {
+                sb.append(',');
+            }
+            sb.append(start).append('-').append(end);
+            start = end + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a token identifying the current boot and phone process, or null if unknown.
+     * The framework keeps the enabled channel ranges for as long as the token doesn't change.
+     */
+    private static String getRadioToken() {
+        int[] pids = Process.getPidsForCommands(new String[] {PHONE_PROCESS});
+        if (pids == null || pids.length != 1) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(BOOT_ID_FILE));
+            String bootId = reader.readLine();
+            return (bootId != null) ? bootId.trim() + ':' + pids[0] : null;
+        } catch (IOException e) {
+            Log.w(TAG, "can't read " + BOOT_ID_FILE, e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void log(String msg) {
+        Log.d(TAG, msg);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Immutable table of message identifier ranges, parsed from a comma-separated list of
+ * message IDs and ranges such as {@code "4370,4380-4382,0x1112-0x1115"}. The ranges are
+ * sorted and overlapping or adjacent ranges are merged, so that {@link #contains} is a
+ * binary search that doesn't allocate.
+ */
+final class CellBroadcastChannelRangeTable {
+    private static final String TAG = "CellBroadcastChannelRangeTable";
+
+    /** Table with no ranges. */
+    static final CellBroadcastChannelRangeTable EMPTY =
+            new CellBroadcastChannelRangeTable(new int[0], new int[0]);
+
+    /** First message ID of each range, in increasing order. */
+    private final int[] mStarts;
+
+    /** Last message ID of each range, inclusive. */
+    private final int[] mEnds;
+
+    private CellBroadcastChannelRangeTable(int[] starts, int[] ends) {
+        mStarts = starts;
+        mEnds = ends;
+    }
+
+    /**
+     * Parse a comma-separated list of message IDs and ranges. Entries that are not valid
+     * numbers are logged and skipped.
+     * @param ranges the list to parse, e.g. the value of a system property; may be empty
+     * @return the range table
+     */
+    static CellBroadcastChannelRangeTable parse(String ranges) {
+        if (TextUtils.isEmpty(ranges)) {
+            return EMPTY;
+        }
+
+        String[] entries = ranges.split(",");
+        // pack each range into a long with the start in the high bits, so sorting the longs
+        // sorts the ranges by start
+        long[] packed = new long[entries.length];
+        int count = 0;
+        for (String channelRange : entries) {
+            try {
+                int startId;
+                int endId;
+                int dashIndex = channelRange.indexOf('-');
+                if (dashIndex != -1) {
+                    startId = Integer.decode(channelRange.substring(0, dashIndex).trim());
+                    endId = Integer.decode(channelRange.substring(dashIndex + 1).trim());
+                } else {
+                    startId = endId = Integer.decode(channelRange.trim());
+                }
+                if (startId > endId) {
+                    Log.e(TAG, "ignoring empty channel range " + channelRange);
+                    continue;
+                }
+                packed[count++] = ((long) startId << 32) | (endId & 0xffffffffL);
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Number Format Exception parsing channel range " + channelRange, e);
+            }
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        Arrays.sort(packed, 0, count);
+
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int start = (int) (packed[i] >> 32);
+            int end = (int) packed[i];
+            if (size > 0 && (long) start <= (long) ends[size - 1] + 1) {
+                // overlaps or is adjacent to the previous range
+                if (end > ends[size - 1]) {
+                    ends[size - 1] = end;
+                }
+            } else {
+                starts[size] = start;
+                ends[size] = end;
+                size++;
+            }
+        }
+        return new CellBroadcastChannelRangeTable(Arrays.copyOf(starts, size),
+                Arrays.copyOf(ends, size));
+    }
+
+    /** Returns true if the message ID is in one of the ranges. */
+    boolean contains(int messageId) {
+        // find the last range starting at or below messageId
+        int low = 0;
+        int high = mStarts.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mStarts[mid] <= messageId) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && messageId <= mEnds[high];
+    }
+
+    /** Returns the number of ranges after merging. */
+    int size() {
+        return mStarts.length;
+    }
+
+    boolean isEmpty() {
+        return mStarts.length == 0;
+    }
+
+    /** Returns the first message ID of the range at the specified index. */
+    int getStart(int index) {
+        return mStarts[index];
+    }
+
+    /** Returns the last message ID (inclusive) of the range at the specified index. */
+    int getEnd(int index) {
+        return mEnds[index];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mStarts.length; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(mStarts[i]);
+            if (mEnds[i] != mStarts[i]) {
+                sb.append('-').append(mEnds[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
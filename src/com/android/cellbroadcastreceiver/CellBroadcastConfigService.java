@@ -21,14 +21,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Message;
 import android.os.SystemProperties;
 import android.preference.PreferenceManager;
 import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbMessage;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
-import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.telephony.cdma.sms.SmsEnvelope;
 import com.android.internal.telephony.gsm.SmsCbConstants;
@@ -45,6 +49,12 @@ import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
  * and lower priority broadcasts are filtered out in CellBroadcastAlertService
  * if the user has not enabled them in settings.
  *
+ * Requests for the same phone are coalesced: a request is skipped if a later request for
+ * the same phone is already queued. Requests triggered by service state changes are held on
+ * the main thread until no further request for the phone was received for
+ * {@link #DEBOUNCE_MSEC}, so a burst of state changes while moving between cells results in a
+ * single configuration run, and the worker thread stays free for other phones meanwhile.
+ *
  * TODO: add notification to re-enable channels after a radio reset.
  */
 public class CellBroadcastConfigService extends IntentService {
@@ -52,54 +62,228 @@ public class CellBroadcastConfigService extends IntentService {
 
     static final String ACTION_ENABLE_CHANNELS = "ACTION_ENABLE_CHANNELS";
 
+    /** Intent extra to wait for further requests for the phone before configuring it. */
+    static final String EXTRA_DEBOUNCE = "debounce";
+
+    /** Time to wait for further service state changes before configuring channels. */
+    private static final long DEBOUNCE_MSEC = 2000;
+
     static final String EMERGENCY_BROADCAST_RANGE_GSM =
             "ro.cb.gsm.emergencyids";
 
+    /** Emergency channel ranges parsed from the system property, or null if not yet parsed. */
+    private static volatile CellBroadcastChannelRangeTable sGsmEmergencyRanges;
+
+    /**
+     * Emergency channel ranges in effect for each subscription: the GSM ranges, or no ranges
+     * if the phone is in CDMA mode. Guarded by itself.
+     */
+    private static final SparseArray<CellBroadcastChannelRangeTable> sEmergencyRangesBySubId =
+            new SparseArray<CellBroadcastChannelRangeTable>();
+
+    static {
+        // Reparse the emergency channel ranges if system properties are changed, e.g. by tests.
+        SystemProperties.addChangeCallback(new Runnable() {
+            @Override
+            public void run() {
+                sGsmEmergencyRanges = null;
+                invalidateEmergencyChannelRanges();
+            }
+        });
+    }
+
+    /** Number of queued requests for each phone ID; guarded by itself. */
+    private final SparseIntArray mPendingRequests = new SparseIntArray();
+
+    /**
+     * Debounced requests held until {@link #DEBOUNCE_MSEC} after the latest one, by phone ID.
+     * Main thread only. A message with the phone ID as its {@code what} is pending for each.
+     */
+    private final SparseArray<Intent> mDebouncedRequests = new SparseArray<Intent>();
+
+    /** The start ID of the latest request. Main thread only. */
+    private int mLastStartId;
+
+    /** Passes held requests to the worker thread once they are no longer debounced. */
+    private final Handler mDebounceHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            int phoneId = msg.what;
+            Intent intent = mDebouncedRequests.get(phoneId);
+            if (intent != null) {
+                mDebouncedRequests.remove(phoneId);
+                queueRequest(intent, mLastStartId);
+            }
+        }
+    };
+
+    /**
+     * Number of requests skipped because a later request replaced them; guarded by
+     * mPendingRequests.
+     */
+    private int mCoalescedCount;
+
     public CellBroadcastConfigService() {
         super(TAG);          // use class name for worker thread name
     }
 
-    private static void setChannelRange(SmsManager manager, String ranges, boolean enable,
-            long subId) {
+    private static int getPhoneId(Intent intent) {
+        return intent.getIntExtra(PhoneConstants.SLOT_KEY,
+                SubscriptionManager.getPhoneId(SubscriptionManager.getDefaultSmsSubId()));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        if (intent == null || !ACTION_ENABLE_CHANNELS.equals(intent.getAction())) {
+            return super.onStartCommand(intent, flags, startId);
+        }
+
+        int phoneId = getPhoneId(intent);
+        if (mDebouncedRequests.get(phoneId) != null) {
+            // replaced by this request
+            mDebouncedRequests.remove(phoneId);
+            mDebounceHandler.removeMessages(phoneId);
+            synchronized (mPendingRequests) {
+                mCoalescedCount++;
+            }
+        }
+        if (intent.getBooleanExtra(EXTRA_DEBOUNCE, false)) {
+            mDebouncedRequests.put(phoneId, intent);
+            mDebounceHandler.sendEmptyMessageDelayed(phoneId, DEBOUNCE_MSEC);
+        } else {
+            queueRequest(intent, startId);
+        }
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Pass a request to the worker thread. The worker stops the service after a request if
+     * its start ID is the latest one, so while debounced requests are held, requests are
+     * passed with a start ID of 0, which never stops the service, and a held request is
+     * passed with the latest start ID once its delay has passed.
+     * @param intent the request
+     * @param startId the start ID of the request
+     */
+    private void queueRequest(Intent intent, int startId) {
+        synchronized (mPendingRequests) {
+            int phoneId = getPhoneId(intent);
+            mPendingRequests.put(phoneId, mPendingRequests.get(phoneId) + 1);
+        }
+        super.onStartCommand(intent, 0, mDebouncedRequests.size() != 0 ? 0 : startId);
+    }
+
+    @Override
+    public void onDestroy() {
+        mDebounceHandler.removeCallbacksAndMessages(null);
+        super.onDestroy();
+    }
+
+    /**
+     * Called on the worker thread before handling a request. Returns false if a later request
+     * for the same phone is queued, which makes this request redundant.
+     * @param phoneId the phone to configure
+     * @return true to handle the request; false to skip it
+     */
+    private boolean isLatestRequest(int phoneId) {
+        synchronized (mPendingRequests) {
+            int pending = mPendingRequests.get(phoneId) - 1;
+            mPendingRequests.put(phoneId, pending);
+            if (pending <= 0) {
+                return true;
+            }
+            mCoalescedCount++;
+            if (DBG) log("skipping request for phone " + phoneId + ", replaced by a later one ("
+                    + mCoalescedCount + " coalesced)");
+            return false;
+        }
+    }
+
+    /**
+     * Returns the emergency channel ranges defined by the system property for a subscription,
+     * parsing the property on first use. There are no emergency channel ranges for a phone in
+     * CDMA mode.
+     * @param subId the subscription ID
+     * @return the emergency channel ranges, possibly empty
+     */
+    static CellBroadcastChannelRangeTable getEmergencyChannelRanges(int subId) {
+        synchronized (sEmergencyRangesBySubId) {
+            CellBroadcastChannelRangeTable ranges = sEmergencyRangesBySubId.get(subId);
+            if (ranges != null) {
+                return ranges;
+            }
+        }
+
+        CellBroadcastChannelRangeTable ranges;
+        if (CellBroadcastReceiver.phoneIsCdma(subId)) {
+            ranges = CellBroadcastChannelRangeTable.EMPTY;
+        } else {
+            ranges = sGsmEmergencyRanges;
+            if (ranges == null) {
+                ranges = CellBroadcastChannelRangeTable.parse(
+                        SystemProperties.get(EMERGENCY_BROADCAST_RANGE_GSM));
+                sGsmEmergencyRanges = ranges;
+            }
+        }
+        synchronized (sEmergencyRangesBySubId) {
+            sEmergencyRangesBySubId.put(subId, ranges);
+        }
+        return ranges;
+    }
+
+    /**
+     * Forget the emergency channel ranges for a subscription, e.g. because its phone type may
+     * have changed.
+     * @param subId the subscription ID
+     */
+    static void invalidateEmergencyChannelRanges(int subId) {
+        synchronized (sEmergencyRangesBySubId) {
+            sEmergencyRangesBySubId.delete(subId);
+        }
+    }
+
+    /** Forget the emergency channel ranges for all subscriptions. */
+    static void invalidateEmergencyChannelRanges() {
+        synchronized (sEmergencyRangesBySubId) {
+            sEmergencyRangesBySubId.clear();
+        }
+    }
+
+    private static void setChannelRange(CellBroadcastChannelConfig config,
+            CellBroadcastChannelRangeTable ranges, boolean enable, long subId) {
         if (DBG)log("setChannelRange: " + ranges);
 
-        try {
-            for (String channelRange : ranges.split(",")) {
-                int dashIndex = channelRange.indexOf('-');
-                if (dashIndex != -1) {
-                    int startId = Integer.decode(channelRange.substring(0, dashIndex).trim());
-                    int endId = Integer.decode(channelRange.substring(dashIndex + 1).trim());
-                    if (enable) {
-                        if (DBG) log("enabling emergency IDs " + startId + '-' + endId);
-                        manager.enableCellBroadcastRange(startId, endId, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                    } else {
-                        if (DBG) log("disabling emergency IDs " + startId + '-' + endId);
-                        manager.disableCellBroadcastRange(startId, endId, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                    }
+        for (int i = 0, n = ranges.size(); i < n; i++) {
+            int startId = ranges.getStart(i);
+            int endId = ranges.getEnd(i);
+            if (startId != endId) {
+                if (enable) {
+                    if (DBG) log("enabling emergency IDs " + startId + '-' + endId);
+                    config.enableCellBroadcastRange(startId, endId, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                 } else {
-                    int messageId = Integer.decode(channelRange.trim());
-                    if (enable) {
-                        if (DBG) log("enabling emergency message ID " + messageId);
-                        manager.enableCellBroadcast(messageId, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                    } else {
-                        if (DBG) log("disabling emergency message ID " + messageId);
-                        manager.disableCellBroadcast(messageId, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                    }
+                    if (DBG) log("disabling emergency IDs " + startId + '-' + endId);
+                    config.disableCellBroadcastRange(startId, endId, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
+                }
+            } else {
+                if (enable) {
+                    if (DBG) log("enabling emergency message ID " + startId);
+                    config.enableCellBroadcast(startId, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
+                } else {
+                    if (DBG) log("disabling emergency message ID " + startId);
+                    config.disableCellBroadcast(startId, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                 }
             }
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Number Format Exception parsing emergency channel range", e);
         }
 
         // Make sure CMAS Presidential is enabled (See 3GPP TS 22.268 Section 6.2).
         if (DBG) log("setChannelRange: enabling CMAS Presidential");
-        manager.enableCellBroadcast(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL,
+        config.enableCellBroadcast(SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL,
                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
         // register Taiwan PWS 4383 also, by default
-        manager.enableCellBroadcast(
+        config.enableCellBroadcast(
                 SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL_LANGUAGE,
                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-        manager.enableCellBroadcast(SmsEnvelope.SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT,
+        config.enableCellBroadcast(SmsEnvelope.SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT,
                 SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
     }
 
@@ -115,40 +299,30 @@ public class CellBroadcastConfigService extends IntentService {
         }
 
         // Check for system property defining the emergency channel ranges to enable
-        String emergencyIdRange = (CellBroadcastReceiver.phoneIsCdma(message.getSubId())) ?
-                "" : SystemProperties.get(EMERGENCY_BROADCAST_RANGE_GSM);
+        return getEmergencyChannelRanges(message.getSubId())
+                .contains(message.getServiceCategory());
+    }
 
-        if (TextUtils.isEmpty(emergencyIdRange)) {
-            return false;
-        }
-        try {
-            int messageId = message.getServiceCategory();
-            for (String channelRange : emergencyIdRange.split(",")) {
-                int dashIndex = channelRange.indexOf('-');
-                if (dashIndex != -1) {
-                    int startId = Integer.decode(channelRange.substring(0, dashIndex).trim());
-                    int endId = Integer.decode(channelRange.substring(dashIndex + 1).trim());
-                    if (messageId >= startId && messageId <= endId) {
-                        return true;
-                    }
-                } else {
-                    int emergencyMessageId = Integer.decode(channelRange.trim());
-                    if (emergencyMessageId == messageId) {
-                        return true;
-                    }
-                }
-            }
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Number Format Exception parsing emergency channel range", e);
-        }
-        return false;
+    /**
+     * Returns true if a stored broadcast is an emergency alert, without creating the
+     * message. Same as {@link #isEmergencyAlertMessage(CellBroadcastMessage)}.
+     * @param serviceCategory the message identifier of the broadcast
+     * @param messagePriority the priority of the broadcast
+     * @param subId the subscription the broadcast was received on
+     */
+    static boolean isEmergencyAlertMessage(int serviceCategory, int messagePriority,
+            int subId) {
+        return messagePriority == SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY
+                || getEmergencyChannelRanges(subId).contains(serviceCategory);
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
         if (ACTION_ENABLE_CHANNELS.equals(intent.getAction())) {
-            int phoneId = intent.getIntExtra(PhoneConstants.SLOT_KEY,
-                 SubscriptionManager.getPhoneId(SubscriptionManager.getDefaultSmsSubId()));
+            int phoneId = getPhoneId(intent);
+            if (!isLatestRequest(phoneId)) {
+                return;
+            }
             int[] subId = SubscriptionManager.getSubId(phoneId);
             try {
                 SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -202,122 +376,122 @@ public class CellBroadcastConfigService extends IntentService {
                 int cmasPresident = SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL;
                 int cmasTaiwanPWS = SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL_LANGUAGE;
 
-                // set to CDMA broadcast ID rage if phone is in CDMA mode.
-                boolean isCdma = CellBroadcastReceiver.phoneIsCdma(subId[0]);
-
-                SmsManager manager = SmsManager.getSmsManagerForSubscriptionId(subId[0]);
+                // Record the channels to enable and disable, then send only the changes from
+                // the previous run to the radio.
+                CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
                 // Check for system property defining the emergency channel ranges to enable
-                String emergencyIdRange = isCdma ?
-                        "" : SystemProperties.get(EMERGENCY_BROADCAST_RANGE_GSM);
+                // (none if phone is in CDMA mode).
+                CellBroadcastChannelRangeTable emergencyIdRange =
+                        getEmergencyChannelRanges(subId[0]);
                 if (enableEmergencyAlerts) {
                     if (DBG) log("enabling emergency cell broadcast channels");
-                    if (!TextUtils.isEmpty(emergencyIdRange)) {
-                        setChannelRange(manager, emergencyIdRange, true, subId[0]);
+                    if (!emergencyIdRange.isEmpty()) {
+                        setChannelRange(config, emergencyIdRange, true, subId[0]);
                     } else {
                         // No emergency channel system property, enable all emergency channels
                         // that have checkbox checked
-                       manager.enableCellBroadcastRange(
+                       config.enableCellBroadcastRange(
                                SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_WARNING,
                                SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_AND_TSUNAMI_WARNING,
                                SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
 
                        if (enableEtwsTestAlerts) {
-                            manager.enableCellBroadcast(
+                            config.enableCellBroadcast(
                                     SmsCbConstants.MESSAGE_ID_ETWS_TEST_MESSAGE,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                        }
 
-                       manager.enableCellBroadcast(
+                       config.enableCellBroadcast(
                                     SmsCbConstants.MESSAGE_ID_ETWS_OTHER_EMERGENCY_TYPE,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
 
                         if (enableCmasExtremeAlerts) {
-                            manager.enableCellBroadcastRange(cmasExtremeStart, cmasExtremeEnd,
+                            config.enableCellBroadcastRange(cmasExtremeStart, cmasExtremeEnd,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                            manager.enableCellBroadcast(
+                            config.enableCellBroadcast(
                                     SmsEnvelope.SERVICE_CATEGORY_CMAS_EXTREME_THREAT,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                         }
                         if (enableCmasSevereAlerts) {
-                            manager.enableCellBroadcastRange(cmasSevereStart, cmasSevereEnd,
+                            config.enableCellBroadcastRange(cmasSevereStart, cmasSevereEnd,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                            manager.enableCellBroadcast(
+                            config.enableCellBroadcast(
                                     SmsEnvelope.SERVICE_CATEGORY_CMAS_SEVERE_THREAT,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                         }
                         if (enableCmasAmberAlerts) {
-                            manager.enableCellBroadcast(cmasAmber,
+                            config.enableCellBroadcast(cmasAmber,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                            manager.enableCellBroadcast(
+                            config.enableCellBroadcast(
                                     SmsEnvelope.SERVICE_CATEGORY_CMAS_CHILD_ABDUCTION_EMERGENCY,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                         }
                         if (enableCmasTestAlerts) {
-                            manager.enableCellBroadcastRange(cmasTestStart, cmasTestEnd,
+                            config.enableCellBroadcastRange(cmasTestStart, cmasTestEnd,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                            manager.enableCellBroadcast(
+                            config.enableCellBroadcast(
                                     SmsEnvelope.SERVICE_CATEGORY_CMAS_TEST_MESSAGE,
                                     SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                         }
                         // CMAS Presidential must be on (See 3GPP TS 22.268 Section 6.2).
-                        manager.enableCellBroadcast(cmasPresident,
+                        config.enableCellBroadcast(cmasPresident,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                        manager.enableCellBroadcast(
+                        config.enableCellBroadcast(
                                 SmsEnvelope.SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                         // register Taiwan PWS 4383 also, by default
-                        manager.enableCellBroadcast(cmasTaiwanPWS,
+                        config.enableCellBroadcast(cmasTaiwanPWS,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                     }
                     if (DBG) log("enabled emergency cell broadcast channels");
                 } else {
                     // we may have enabled these channels previously, so try to disable them
                     if (DBG) log("disabling emergency cell broadcast channels");
-                    if (!TextUtils.isEmpty(emergencyIdRange)) {
-                        setChannelRange(manager, emergencyIdRange, false, subId[0]);
+                    if (!emergencyIdRange.isEmpty()) {
+                        setChannelRange(config, emergencyIdRange, false, subId[0]);
                     } else {
                         // No emergency channel system property, disable all emergency channels
                         // except for CMAS Presidential (See 3GPP TS 22.268 Section 6.2)
-                        manager.disableCellBroadcastRange(
+                        config.disableCellBroadcastRange(
                                 SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_WARNING,
                                 SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_AND_TSUNAMI_WARNING,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                        manager.disableCellBroadcast(
+                        config.disableCellBroadcast(
                                 SmsCbConstants.MESSAGE_ID_ETWS_TEST_MESSAGE,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                        manager.disableCellBroadcast(
+                        config.disableCellBroadcast(
                                 SmsCbConstants.MESSAGE_ID_ETWS_OTHER_EMERGENCY_TYPE,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
 
-                        manager.disableCellBroadcastRange(cmasExtremeStart, cmasExtremeEnd,
+                        config.disableCellBroadcastRange(cmasExtremeStart, cmasExtremeEnd,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                        manager.disableCellBroadcastRange(cmasSevereStart, cmasSevereEnd,
+                        config.disableCellBroadcastRange(cmasSevereStart, cmasSevereEnd,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                        manager.disableCellBroadcast(cmasAmber,
+                        config.disableCellBroadcast(cmasAmber,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                        manager.disableCellBroadcastRange(cmasTestStart, cmasTestEnd,
+                        config.disableCellBroadcastRange(cmasTestStart, cmasTestEnd,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
 
-                        manager.disableCellBroadcast(
+                        config.disableCellBroadcast(
                                 SmsEnvelope.SERVICE_CATEGORY_CMAS_EXTREME_THREAT,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
-                        manager.disableCellBroadcast(
+                        config.disableCellBroadcast(
                                 SmsEnvelope.SERVICE_CATEGORY_CMAS_SEVERE_THREAT,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
-                        manager.disableCellBroadcast(
+                        config.disableCellBroadcast(
                                 SmsEnvelope.SERVICE_CATEGORY_CMAS_CHILD_ABDUCTION_EMERGENCY,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
-                        manager.disableCellBroadcast(
+                        config.disableCellBroadcast(
                                 SmsEnvelope.SERVICE_CATEGORY_CMAS_TEST_MESSAGE ,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                         // CMAS Presidential must be on (See 3GPP TS 22.268 Section 6.2).
-                        manager.enableCellBroadcast(cmasPresident,
+                        config.enableCellBroadcast(cmasPresident,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                        manager.enableCellBroadcast(
+                        config.enableCellBroadcast(
                                 SmsEnvelope.SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                         // register Taiwan PWS 4383 also, by default
-                        manager.enableCellBroadcast(cmasTaiwanPWS,
+                        config.enableCellBroadcast(cmasTaiwanPWS,
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                     }
                     if (DBG) log("disabled emergency cell broadcast channels");
@@ -325,19 +499,19 @@ public class CellBroadcastConfigService extends IntentService {
 
                 if (enableChannel50Alerts) {
                     if (DBG) log("enabling cell broadcast channel 50");
-                    manager.enableCellBroadcast(50, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
+                    config.enableCellBroadcast(50, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                 } else {
                     if (DBG) log("disabling cell broadcast channel 50");
-                    manager.disableCellBroadcast(50, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
+                    config.disableCellBroadcast(50, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                 }
 
                 if ("il".equals(tm.getSimCountryIso()) || "il".equals(tm.getNetworkCountryIso())) {
                     if (DBG) log("enabling channels 919-928 for Israel");
-                    manager.enableCellBroadcastRange(919, 928,
+                    config.enableCellBroadcastRange(919, 928,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                 } else {
                     if (DBG) log("disabling channels 919-928");
-                    manager.disableCellBroadcastRange(919, 928,
+                    config.disableCellBroadcastRange(919, 928,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                 }
 
@@ -346,41 +520,45 @@ public class CellBroadcastConfigService extends IntentService {
                 // but check box is unchecked to receive such as cmas severe alerts.
                 if (!enableEtwsTestAlerts) {
                     if (DBG) Log.d(TAG, "disabling cell broadcast ETWS test messages");
-                    manager.disableCellBroadcast(
+                    config.disableCellBroadcast(
                             SmsCbConstants.MESSAGE_ID_ETWS_TEST_MESSAGE,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                 }
                 if (!enableCmasExtremeAlerts) {
                     // Unregister Severe alerts also, if Extreme alerts are disabled
                     if (DBG) Log.d(TAG, "disabling cell broadcast CMAS extreme and severe");
-                    manager.disableCellBroadcastRange(cmasExtremeStart, cmasExtremeEnd,
+                    config.disableCellBroadcastRange(cmasExtremeStart, cmasExtremeEnd,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                    manager.disableCellBroadcast(
+                    config.disableCellBroadcast(
                             SmsEnvelope.SERVICE_CATEGORY_CMAS_EXTREME_THREAT,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                 }
 
                 if (!enableCmasSevereAlerts) {
                     if (DBG) Log.d(TAG, "disabling cell broadcast CMAS severe");
-                    manager.disableCellBroadcastRange(cmasSevereStart, cmasSevereEnd,
+                    config.disableCellBroadcastRange(cmasSevereStart, cmasSevereEnd,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                    manager.disableCellBroadcast(SmsEnvelope.SERVICE_CATEGORY_CMAS_SEVERE_THREAT,
+                    config.disableCellBroadcast(SmsEnvelope.SERVICE_CATEGORY_CMAS_SEVERE_THREAT,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                 }
                 if (!enableCmasAmberAlerts) {
                     if (DBG) Log.d(TAG, "disabling cell broadcast CMAS amber");
-                    manager.disableCellBroadcast(cmasAmber, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                    manager.disableCellBroadcast(
+                    config.disableCellBroadcast(cmasAmber, SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
+                    config.disableCellBroadcast(
                             SmsEnvelope.SERVICE_CATEGORY_CMAS_CHILD_ABDUCTION_EMERGENCY,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                 }
                 if (!enableCmasTestAlerts) {
                     if (DBG) Log.d(TAG, "disabling cell broadcast CMAS test messages");
-                    manager.disableCellBroadcastRange(cmasTestStart, cmasTestEnd,
+                    config.disableCellBroadcastRange(cmasTestStart, cmasTestEnd,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-                    manager.disableCellBroadcast(SmsEnvelope.SERVICE_CATEGORY_CMAS_TEST_MESSAGE,
+                    config.disableCellBroadcast(SmsEnvelope.SERVICE_CATEGORY_CMAS_TEST_MESSAGE,
                             SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA);
                 }
+
+                SmsManager manager = SmsManager.getSmsManagerForSubscriptionId(subId[0]);
+                config.apply(manager, CellBroadcastChannelConfig.loadApplied(this, subId[0]))
+                        .saveApplied(this, subId[0]);
             } catch (Exception ex) {
                 Log.e(TAG, "exception enabling cell broadcast channels", ex);
             }
@@ -18,22 +18,42 @@ package com.android.cellbroadcastreceiver;
 
 import android.content.ContentProvider;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbCmasInfo;
+import android.telephony.SmsCbEtwsInfo;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * ContentProvider for the database of received cell broadcasts.
+ *
+ * <p>Other apps holding the write permission of the provider, e.g. importers and test
+ * harnesses, can insert broadcasts with {@link #bulkInsert} or {@link #applyBatch}, which
+ * write all rows in one transaction and notify observers once.
  */
 public class CellBroadcastContentProvider extends ContentProvider {
     private static final String TAG = "CellBroadcastContentProvider";
@@ -47,26 +67,129 @@ public class CellBroadcastContentProvider extends ContentProvider {
     /** Content URI for notifying observers. */
     static final Uri CONTENT_URI = Uri.parse("content://cellbroadcasts/");
 
+    /**
+     * URI for notifying observers that newly received broadcasts were added, and no other rows
+     * changed. New broadcasts are the most recently received, so observers of pages of the
+     * history only need to load the rows received after the first row they have.
+     */
+    static final Uri NEW_BROADCASTS_URI = Uri.parse("content://cellbroadcasts/new");
+
     /** URI matcher type to get all cell broadcasts. */
     private static final int CB_ALL = 0;
 
     /** URI matcher type to get a cell broadcast by ID. */
     private static final int CB_ALL_ID = 1;
 
+    /** URI matcher type to search broadcasts by keywords. */
+    private static final int CB_SEARCH = 2;
+
+    /** Path of the search URI. */
+    private static final String SEARCH_PATH = "search";
+
+    /** Query parameter for the keywords to search for. */
+    static final String QUERY_PARAM_SEARCH = "q";
+
+    /** Query parameter for the number of search results to skip. */
+    static final String QUERY_PARAM_OFFSET = "offset";
+
+    /** Query parameter for the maximum number of rows to return. */
+    static final String QUERY_PARAM_LIMIT = "limit";
+
+    /**
+     * Query parameters for the delivery time and row ID of the last row of the previous page.
+     * Only broadcasts after that row, in the order of {@link #PAGE_SORT_ORDER}, are returned.
+     */
+    static final String QUERY_PARAM_BEFORE_TIME = "before_time";
+    static final String QUERY_PARAM_BEFORE_ID = "before_id";
+
+    /**
+     * Query parameters for the delivery time and row ID of the first row of the first page.
+     * Only broadcasts before that row, in the order of {@link #PAGE_SORT_ORDER}, are returned.
+     */
+    static final String QUERY_PARAM_AFTER_TIME = "after_time";
+    static final String QUERY_PARAM_AFTER_ID = "after_id";
+
+    /**
+     * Sort order for paged queries. Row ID breaks ties between broadcasts with the same
+     * delivery time, so that the last row of a page identifies where the next page starts.
+     * The delivery time index includes the row ID, so pages are read from the index.
+     */
+    static final String PAGE_SORT_ORDER = Telephony.CellBroadcasts.DELIVERY_TIME + " DESC, "
+            + Telephony.CellBroadcasts._ID + " DESC";
+
+    /** Value of the auto_vacuum pragma for incremental vacuum. */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Maximum number of free pages released in one step of incremental vacuum. */
+    private static final int VACUUM_PAGES = 64;
+
     /** MIME type for the list of all cell broadcasts. */
     private static final String CB_LIST_TYPE = "vnd.android.cursor.dir/cellbroadcast";
 
     /** MIME type for an individual cell broadcast. */
     private static final String CB_TYPE = "vnd.android.cursor.item/cellbroadcast";
 
+    /**
+     * Columns that can be inserted, in the order of the parameters of {@link #INSERT_SQL}.
+     * The row ID is assigned by the database. {@link #insertBroadcast} binds the columns by
+     * these indices, so the two must be kept in sync.
+     */
+    private static final String[] INSERT_COLUMNS = {
+            Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
+            Telephony.CellBroadcasts.PLMN,
+            Telephony.CellBroadcasts.LAC,
+            Telephony.CellBroadcasts.CID,
+            Telephony.CellBroadcasts.SERIAL_NUMBER,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.LANGUAGE_CODE,
+            Telephony.CellBroadcasts.MESSAGE_BODY,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            Telephony.CellBroadcasts.MESSAGE_FORMAT,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.CMAS_CATEGORY,
+            Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE,
+            Telephony.CellBroadcasts.CMAS_SEVERITY,
+            Telephony.CellBroadcasts.CMAS_URGENCY,
+            Telephony.CellBroadcasts.CMAS_CERTAINTY,
+    };
+
+    /** Insert statement binding {@link #INSERT_COLUMNS} by index. */
+    static final String INSERT_SQL;
+
+    static {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(CellBroadcastDatabaseHelper.TABLE_NAME).append(" (");
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(INSERT_COLUMNS[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        INSERT_SQL = sql.append(')').toString();
+    }
+
     static {
         sUriMatcher.addURI(CB_AUTHORITY, null, CB_ALL);
         sUriMatcher.addURI(CB_AUTHORITY, "#", CB_ALL_ID);
+        sUriMatcher.addURI(CB_AUTHORITY, SEARCH_PATH, CB_SEARCH);
     }
 
     /** The database for this content provider. */
     private SQLiteOpenHelper mOpenHelper;
 
+    /** Set while {@link #applyBatch} runs on a thread, to notify observers once. */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    /**
+     * The compiled {@link #INSERT_SQL}, compiled once and reused by every insert. Only used in
+     * a transaction, see {@link #getInsertStatement}.
+     */
+    private SQLiteStatement mInsertStatement;
+
     /**
      * Initialize content provider.
      * @return true if the provider was successfully loaded, false otherwise
@@ -77,6 +200,51 @@ public class CellBroadcastContentProvider extends ContentProvider {
         return true;
     }
 
+    /**
+     * Returns the URI for a page of broadcasts, most recently received first.
+     * @param limit the maximum number of broadcasts in the page
+     * @param beforeTime the delivery time of the last row of the previous page
+     * @param beforeId the row ID of the last row of the previous page, or -1 for the first page
+     */
+    static Uri getPageUri(int limit, long beforeTime, long beforeId) {
+        Uri.Builder builder = CONTENT_URI.buildUpon()
+                .appendQueryParameter(QUERY_PARAM_LIMIT, Integer.toString(limit));
+        if (beforeId != -1) {
+            builder.appendQueryParameter(QUERY_PARAM_BEFORE_TIME, Long.toString(beforeTime))
+                    .appendQueryParameter(QUERY_PARAM_BEFORE_ID, Long.toString(beforeId));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the URI for the broadcasts received after the first row of the first page, most
+     * recently received first.
+     * @param afterTime the delivery time of the first row of the first page
+     * @param afterId the row ID of the first row of the first page
+     */
+    static Uri getNewerPageUri(long afterTime, long afterId) {
+        return CONTENT_URI.buildUpon()
+                .appendQueryParameter(QUERY_PARAM_AFTER_TIME, Long.toString(afterTime))
+                .appendQueryParameter(QUERY_PARAM_AFTER_ID, Long.toString(afterId))
+                .build();
+    }
+
+    /**
+     * Returns the URI for a page of broadcasts matching keywords, best matches first.
+     * @param keywords the words typed by the user; a broadcast matches if its body contains
+     *  all of the words, or words starting with them
+     * @param limit the maximum number of broadcasts in the page
+     * @param offset the number of matching broadcasts in the previous pages
+     */
+    static Uri getSearchUri(String keywords, int limit, int offset) {
+        return CONTENT_URI.buildUpon()
+                .appendPath(SEARCH_PATH)
+                .appendQueryParameter(QUERY_PARAM_SEARCH, keywords)
+                .appendQueryParameter(QUERY_PARAM_LIMIT, Integer.toString(limit))
+                .appendQueryParameter(QUERY_PARAM_OFFSET, Integer.toString(offset))
+                .build();
+    }
+
     /**
      * Return a cursor for the cell broadcast table.
      * @param uri the URI to query.
@@ -84,7 +252,7 @@ public class CellBroadcastContentProvider extends ContentProvider {
      * @param selection the selection criteria to apply when filtering rows, or null.
      * @param selectionArgs values to replace ?s in selection string.
      * @param sortOrder how the rows in the cursor should be sorted, or null to sort from most
-     *  recently received to least recently received.
+     *  recently received to least recently received. Ignored for a page after another page.
      * @return a Cursor or null.
      */
     @Override
@@ -99,6 +267,9 @@ public class CellBroadcastContentProvider extends ContentProvider {
                 // get all broadcasts
                 break;
 
+            case CB_SEARCH:
+                return search(uri, projection);
+
             case CB_ALL_ID:
                 // get broadcast by ID
                 qb.appendWhere("(_id=" + uri.getPathSegments().get(0) + ')');
@@ -110,20 +281,132 @@ public class CellBroadcastContentProvider extends ContentProvider {
         }
 
         String orderBy;
-        if (!TextUtils.isEmpty(sortOrder)) {
+        String beforeTime = uri.getQueryParameter(QUERY_PARAM_BEFORE_TIME);
+        String beforeId = uri.getQueryParameter(QUERY_PARAM_BEFORE_ID);
+        String afterTime = uri.getQueryParameter(QUERY_PARAM_AFTER_TIME);
+        String afterId = uri.getQueryParameter(QUERY_PARAM_AFTER_ID);
+        if (match == CB_ALL && afterTime != null && afterId != null) {
+            // the rows before (afterTime, afterId) in PAGE_SORT_ORDER
+            long time = parseLongParameter(uri, afterTime);
+            long id = parseLongParameter(uri, afterId);
+            qb.appendWhere("(" + Telephony.CellBroadcasts.DELIVERY_TIME + ">=" + time + " AND ("
+                    + Telephony.CellBroadcasts.DELIVERY_TIME + '>' + time + " OR "
+                    + Telephony.CellBroadcasts._ID + '>' + id + "))");
+            orderBy = PAGE_SORT_ORDER;
+        } else if (match == CB_ALL && beforeTime != null && beforeId != null) {
+            // keyset paging: the rows after (beforeTime, beforeId) in PAGE_SORT_ORDER, written
+            // so that the delivery time index is scanned from that row
+            long time = parseLongParameter(uri, beforeTime);
+            long id = parseLongParameter(uri, beforeId);
+            qb.appendWhere("(" + Telephony.CellBroadcasts.DELIVERY_TIME + "<=" + time + " AND ("
+                    + Telephony.CellBroadcasts.DELIVERY_TIME + '<' + time + " OR "
+                    + Telephony.CellBroadcasts._ID + '<' + id + "))");
+            orderBy = PAGE_SORT_ORDER;
+        } else if (!TextUtils.isEmpty(sortOrder)) {
             orderBy = sortOrder;
         } else {
             orderBy = Telephony.CellBroadcasts.DEFAULT_SORT_ORDER;
         }
 
+        String limit = uri.getQueryParameter(QUERY_PARAM_LIMIT);
+        if (limit != null) {
+            limit = Long.toString(parseLongParameter(uri, limit));
+        }
+
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy,
+                limit);
         if (c != null) {
             c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
         }
         return c;
     }
 
+    /**
+     * Return a page of the broadcasts matching the keywords of a search URI from the full-text
+     * index. Broadcasts with more matches of the keywords come first, then the most recently
+     * received. The selection and sort order of the query are not supported for searches.
+     */
+    private Cursor search(Uri uri, String[] projection) {
+        if (projection == null) {
+            projection = Telephony.CellBroadcasts.QUERY_COLUMNS;
+        }
+        String matchExpression = toMatchExpression(uri.getQueryParameter(QUERY_PARAM_SEARCH));
+        if (matchExpression == null) {
+            return new MatrixCursor(projection, 0);     // nothing to search for
+        }
+
+        // offsets() returns four integers separated by spaces for each match, so the number
+        // of spaces ranks the broadcasts by the number of matches.
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < projection.length; i++) {
+            if (i != 0) {
+                sql.append(", ");
+            }
+            sql.append(CellBroadcastDatabaseHelper.TABLE_NAME).append('.')
+                    .append(projection[i]).append(" AS ").append(projection[i]);
+        }
+        sql.append(" FROM ").append(CellBroadcastDatabaseHelper.TABLE_NAME)
+                .append(" JOIN (SELECT docid, offsets(")
+                .append(CellBroadcastDatabaseHelper.FTS_TABLE_NAME).append(") AS matches FROM ")
+                .append(CellBroadcastDatabaseHelper.FTS_TABLE_NAME).append(" WHERE ")
+                .append(CellBroadcastDatabaseHelper.FTS_TABLE_NAME).append(" MATCH ?) AS m ON ")
+                .append(CellBroadcastDatabaseHelper.TABLE_NAME).append('.')
+                .append(Telephony.CellBroadcasts._ID).append("=m.docid")
+                .append(" ORDER BY length(m.matches) - length(replace(m.matches, ' ', '')) DESC, ")
+                .append(CellBroadcastDatabaseHelper.TABLE_NAME).append('.')
+                .append(Telephony.CellBroadcasts.DELIVERY_TIME).append(" DESC, ")
+                .append(CellBroadcastDatabaseHelper.TABLE_NAME).append('.')
+                .append(Telephony.CellBroadcasts._ID).append(" DESC");
+
+        String limit = uri.getQueryParameter(QUERY_PARAM_LIMIT);
+        if (limit != null) {
+            sql.append(" LIMIT ").append(parseLongParameter(uri, limit));
+            String offset = uri.getQueryParameter(QUERY_PARAM_OFFSET);
+            if (offset != null) {
+                sql.append(" OFFSET ").append(parseLongParameter(uri, offset));
+            }
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.rawQuery(sql.toString(), new String[] {matchExpression});
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        }
+        return c;
+    }
+
+    /**
+     * Convert the words typed by the user to a full-text query matching all of the words as
+     * prefixes. Each word is quoted, so that characters with a meaning in the query syntax
+     * are searched for as text.
+     * @return the query, or null if there are no words
+     */
+    private static String toMatchExpression(String keywords) {
+        if (keywords == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String word : keywords.trim().split("\\s+")) {
+            word = word.replace("\"", "");
+            if (!word.isEmpty()) {
+                if (sb.length() != 0) {
+                    sb.append(' ');
+                }
+                sb.append('"').append(word).append("*\"");
+            }
+        }
+        return sb.length() != 0 ? sb.toString() : null;
+    }
+
+    private static long parseLongParameter(Uri uri, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid query parameter: " + uri);
+        }
+    }
+
     /**
      * Return the MIME type of the data at the specified URI.
      * @param uri the URI to query.
@@ -139,38 +422,113 @@ public class CellBroadcastContentProvider extends ContentProvider {
             case CB_ALL_ID:
                 return CB_TYPE;
 
+            case CB_SEARCH:
+                return CB_LIST_TYPE;
+
             default:
                 return null;
         }
     }
 
     /**
-     * Insert a new row. This throws an exception, as the database can only be modified by
-     * calling custom methods in this class, and not via the ContentProvider interface.
+     * Insert a new row and notify observers.
      * @param uri the content:// URI of the insertion request.
      * @param values a set of column_name/value pairs to add to the database.
-     * @return the URI for the newly inserted item.
+     * @return the URI for the newly inserted item, or null if the insert failed.
      */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        throw new UnsupportedOperationException("insert not supported");
+        checkInsertUri(uri);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = insertRow(getInsertStatement(db), values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (rowId == -1) {
+            Log.e(TAG, "failed to insert broadcast into database");
+            return null;
+        }
+        notifyChange();
+        return ContentUris.withAppendedId(CONTENT_URI, rowId);
+    }
+
+    /**
+     * Insert rows in a single transaction with one compiled statement, and notify observers
+     * once.
+     * @param uri the content:// URI of the insertion request.
+     * @param values the rows to insert.
+     * @return the number of rows inserted.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        checkInsertUri(uri);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = getInsertStatement(db);
+            for (ContentValues cv : values) {
+                if (insertRow(insert, cv) != -1) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count != 0) {
+            notifyChange();
+        }
+        return count;
+    }
+
+    /**
+     * Apply the operations in a single transaction, and notify observers once. The batch is
+     * rolled back if any operation fails.
+     * @param operations the operations to apply.
+     * @return the results of the operations.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mApplyingBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.remove();
+        }
+        notifyChange();
+        return results;
     }
 
     /**
-     * Delete one or more rows. This throws an exception, as the database can only be modified by
-     * calling custom methods in this class, and not via the ContentProvider interface.
+     * Delete one or more rows and notify observers.
      * @param uri the full URI to query, including a row ID (if a specific record is requested).
      * @param selection an optional restriction to apply to rows when deleting.
      * @return the number of rows affected.
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        throw new UnsupportedOperationException("delete not supported");
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count = db.delete(CellBroadcastDatabaseHelper.TABLE_NAME,
+                getWriteSelection(uri, selection), selectionArgs);
+        if (count != 0) {
+            notifyChange();
+        }
+        return count;
     }
 
     /**
-     * Update one or more rows. This throws an exception, as the database can only be modified by
-     * calling custom methods in this class, and not via the ContentProvider interface.
+     * Update one or more rows and notify observers.
      * @param uri the URI to query, potentially including the row ID.
      * @param values a Bundle mapping from column names to new column values.
      * @param selection an optional filter to match rows to update.
@@ -178,33 +536,212 @@ public class CellBroadcastContentProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        throw new UnsupportedOperationException("update not supported");
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count = db.update(CellBroadcastDatabaseHelper.TABLE_NAME, values,
+                getWriteSelection(uri, selection), selectionArgs);
+        if (count != 0) {
+            notifyChange();
+        }
+        return count;
+    }
+
+    private static void checkInsertUri(Uri uri) {
+        if (sUriMatcher.match(uri) != CB_ALL) {
+            throw new IllegalArgumentException("Invalid insert: " + uri);
+        }
+    }
+
+    /** Returns the selection for an update or delete, restricted to the row ID of the URI. */
+    private static String getWriteSelection(Uri uri, String selection) {
+        switch (sUriMatcher.match(uri)) {
+            case CB_ALL:
+                return selection;
+
+            case CB_ALL_ID:
+                String idSelection = Telephony.CellBroadcasts._ID + '='
+                        + ContentUris.parseId(uri);
+                return TextUtils.isEmpty(selection) ? idSelection
+                        : idSelection + " AND (" + selection + ')';
+
+            default:
+                Log.e(TAG, "Invalid write: " + uri);
+                throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
     }
 
     /**
-     * Internal method to insert a new Cell Broadcast into the database and notify observers.
-     * @param message the message to insert
-     * @return true if the broadcast is new, false if it's a duplicate broadcast.
+     * Returns the compiled insert statement, compiling it on first use. The bindings of the
+     * statement are shared, so it must only be used in a transaction: the transaction holds
+     * the database write lock, so only one thread at a time binds and executes it.
      */
-    boolean insertNewBroadcast(CellBroadcastMessage message) {
+    private SQLiteStatement getInsertStatement(SQLiteDatabase db) {
+        if (!db.inTransaction()) {
+            throw new IllegalStateException("insert statement used outside a transaction");
+        }
+        if (mInsertStatement == null) {
+            mInsertStatement = db.compileStatement(INSERT_SQL);
+        }
+        return mInsertStatement;
+    }
+
+    /**
+     * Bind a row to the compiled insert statement by column index and insert it.
+     * @return the row ID, or -1 if the insert failed
+     * @throws IllegalArgumentException if the row has a column that can't be inserted
+     */
+    private static long insertRow(SQLiteStatement insert, ContentValues values) {
+        insert.clearBindings();
+        int bound = 0;
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            if (values.containsKey(INSERT_COLUMNS[i])) {
+                DatabaseUtils.bindObjectToProgram(insert, i + 1, values.get(INSERT_COLUMNS[i]));
+                bound++;
+            }
+        }
+        if (bound != values.size()) {
+            throw new IllegalArgumentException("Invalid columns in insert: " + values.keySet());
+        }
+        try {
+            return insert.executeInsert();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "failed to insert row", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Bind a new broadcast to the compiled insert statement by column index, straight from the
+     * fields of the message, and insert it. Columns are bound as by
+     * {@link CellBroadcastMessage#getContentValues}: the location, ETWS and CMAS columns are
+     * left null when the message doesn't have them.
+     * @param insert the statement compiled from {@link #INSERT_SQL}
+     * @param message the contents of the broadcast
+     * @param deliveryTime the time the broadcast was received
+     * @param read true if the broadcast has been read
+     * @return the row ID, or -1 if the insert failed
+     */
+    static long insertBroadcast(SQLiteStatement insert, SmsCbMessage message, long deliveryTime,
+            boolean read) {
+        insert.clearBindings();
+        insert.bindLong(1, message.getGeographicalScope());
+        SmsCbLocation location = message.getLocation();
+        if (location.getPlmn() != null) {
+            insert.bindString(2, location.getPlmn());
+        }
+        if (location.getLac() != -1) {
+            insert.bindLong(3, location.getLac());
+        }
+        if (location.getCid() != -1) {
+            insert.bindLong(4, location.getCid());
+        }
+        insert.bindLong(5, message.getSerialNumber());
+        insert.bindLong(6, message.getServiceCategory());
+        if (message.getLanguageCode() != null) {
+            insert.bindString(7, message.getLanguageCode());
+        }
+        if (message.getMessageBody() != null) {
+            insert.bindString(8, message.getMessageBody());
+        }
+        insert.bindLong(9, deliveryTime);
+        insert.bindLong(10, read ? 1 : 0);
+        insert.bindLong(11, message.getMessageFormat());
+        insert.bindLong(12, message.getMessagePriority());
+        SmsCbEtwsInfo etwsInfo = message.getEtwsWarningInfo();
+        if (etwsInfo != null) {
+            insert.bindLong(13, etwsInfo.getWarningType());
+        }
+        SmsCbCmasInfo cmasInfo = message.getCmasWarningInfo();
+        if (cmasInfo != null) {
+            insert.bindLong(14, cmasInfo.getMessageClass());
+            insert.bindLong(15, cmasInfo.getCategory());
+            insert.bindLong(16, cmasInfo.getResponseType());
+            insert.bindLong(17, cmasInfo.getSeverity());
+            insert.bindLong(18, cmasInfo.getUrgency());
+            insert.bindLong(19, cmasInfo.getCertainty());
+        }
+        try {
+            return insert.executeInsert();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "failed to insert broadcast", e);
+            return -1;
+        }
+    }
+
+    /** Notify observers of a change, unless a batch is being applied on this thread. */
+    private void notifyChange() {
+        if (mApplyingBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(CONTENT_URI, null, false);
+        }
+    }
+
+    /**
+     * Internal method to insert a batch of new Cell Broadcasts into the database in a single
+     * transaction. The caller is responsible for notifying observers.
+     * @param messages the messages to insert
+     * @param smsCbMessages the contents of the messages, as received, in the same order
+     */
+    void insertNewBroadcasts(List<CellBroadcastMessage> messages,
+            List<SmsCbMessage> smsCbMessages) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        ContentValues cv = message.getContentValues();
 
         // Note: this method previously queried the database for duplicate message IDs, but this
         // is not compatible with CMAS carrier requirements and could also cause other emergency
         // alerts, e.g. ETWS, to not display if the database is filled with old messages.
         // Use duplicate message ID detection in CellBroadcastAlertService instead of DB query.
 
-        long rowId = db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, cv);
-        if (rowId == -1) {
-            Log.e(TAG, "failed to insert new broadcast into database");
-            // Return true on DB write failure because we still want to notify the user.
-            // The CellBroadcastMessage will be passed with the intent, so the message will be
-            // displayed in the emergency alert dialog, or the dialog that is displayed when
-            // the user selects the notification for a non-emergency broadcast, even if the
-            // broadcast could not be written to the database.
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = getInsertStatement(db);
+            for (int i = 0, n = messages.size(); i < n; i++) {
+                CellBroadcastMessage message = messages.get(i);
+                if (insertBroadcast(insert, smsCbMessages.get(i), message.getDeliveryTime(),
+                        message.isRead()) == -1) {
+                    // The user is still notified of the broadcast: the CellBroadcastMessage is
+                    // passed with the intent, so the message will be displayed in the emergency
+                    // alert dialog, or the dialog that is displayed when the user selects the
+                    // notification for a non-emergency broadcast, even if the broadcast could
+                    // not be written to the database.
+                    Log.e(TAG, "failed to insert new broadcast into database");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Internal method to insert rows replayed from the {@link CellBroadcastInsertJournal} in a
+     * single transaction. Rows that were already committed before the journal was cleared,
+     * identified by delivery time, service category and serial number, are skipped. The caller
+     * is responsible for notifying observers.
+     * @param rows the rows to insert
+     */
+    void insertJournaledBroadcasts(List<ContentValues> rows) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = getInsertStatement(db);
+            for (int i = 0, n = rows.size(); i < n; i++) {
+                ContentValues cv = rows.get(i);
+                String[] selectionArgs = {
+                        cv.getAsString(Telephony.CellBroadcasts.DELIVERY_TIME),
+                        cv.getAsString(Telephony.CellBroadcasts.SERVICE_CATEGORY),
+                        cv.getAsString(Telephony.CellBroadcasts.SERIAL_NUMBER)};
+                if (DatabaseUtils.queryNumEntries(db, CellBroadcastDatabaseHelper.TABLE_NAME,
+                        Telephony.CellBroadcasts.DELIVERY_TIME + "=? AND "
+                        + Telephony.CellBroadcasts.SERVICE_CATEGORY + "=? AND "
+                        + Telephony.CellBroadcasts.SERIAL_NUMBER + "=?", selectionArgs) != 0) {
+                    continue;   // committed before the process died
+                }
+                if (insertRow(insert, cv) == -1) {
+                    Log.e(TAG, "failed to insert journaled broadcast into database");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        return true;    // broadcast is not a duplicate
     }
 
     /**
@@ -269,6 +806,132 @@ public class CellBroadcastContentProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Internal method to delete the broadcasts matching a selection, except for the most
+     * recently received ones, for {@link CellBroadcastRetentionService}. Rows are deleted in
+     * chunks of {@link CellBroadcastRetentionService#CHUNK_SIZE}, each in its own transaction,
+     * so the database is never locked for long. The caller is responsible for notifying
+     * observers.
+     * @param selection the broadcasts to delete, or null for all broadcasts
+     * @param keepCount the number of most recent matching broadcasts to keep
+     * @param metrics updated with the number of rows deleted and the time the database was locked
+     */
+    void purgeBroadcasts(String selection, int keepCount,
+            CellBroadcastRetentionService.Metrics metrics) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // Each chunk is the next rows after the ones kept, most recent first.
+        SQLiteStatement delete = db.compileStatement("DELETE FROM "
+                + CellBroadcastDatabaseHelper.TABLE_NAME + " WHERE " + Telephony.CellBroadcasts._ID
+                + " IN (SELECT " + Telephony.CellBroadcasts._ID + " FROM "
+                + CellBroadcastDatabaseHelper.TABLE_NAME
+                + (selection != null ? " WHERE " + selection : "")
+                + " ORDER BY " + PAGE_SORT_ORDER
+                + " LIMIT " + CellBroadcastRetentionService.CHUNK_SIZE
+                + " OFFSET " + keepCount + ')');
+        try {
+            int deleted;
+            do {
+                long startTime = SystemClock.elapsedRealtime();
+                db.beginTransaction();
+                try {
+                    deleted = delete.executeUpdateDelete();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                metrics.addLockTime(SystemClock.elapsedRealtime() - startTime);
+                metrics.mRowsPurged += deleted;
+                if (deleted == CellBroadcastRetentionService.CHUNK_SIZE) {
+                    SystemClock.sleep(CellBroadcastRetentionService.CHUNK_PAUSE_MSEC);
+                }
+            } while (deleted == CellBroadcastRetentionService.CHUNK_SIZE);
+        } finally {
+            delete.close();
+        }
+    }
+
+    /**
+     * Internal method to return the free pages of the database file to the file system, for
+     * {@link CellBroadcastRetentionService}. Free pages are released a few at a time, with a
+     * pause between steps, so that the database is never locked for long. New databases are
+     * created with incremental auto vacuum; a database created before that is switched to it
+     * by rebuilding the file once, which locks the database for the whole rebuild, so that is
+     * only done while the device is idle.
+     * @param metrics updated with the bytes reclaimed and the time the database was locked
+     * @param idle true if the device is idle, so the database may be rebuilt
+     */
+    void incrementalVacuum(CellBroadcastRetentionService.Metrics metrics, boolean idle) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+        long startTime = SystemClock.elapsedRealtime();
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            if (!idle) {
+                Log.d(TAG, "not switching database to incremental vacuum until idle");
+                return;
+            }
+            Log.d(TAG, "switching database to incremental vacuum");
+            try {
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+            } catch (SQLiteException e) {
+                // e.g. not enough space for the copy of the database; try again next time
+                Log.e(TAG, "can't vacuum database", e);
+            }
+            metrics.addLockTime(SystemClock.elapsedRealtime() - startTime);
+        } else {
+            while (DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0) {
+                // the pragma frees one page per step, so read its result to the end
+                Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ')', null);
+                try {
+                    c.getCount();
+                } finally {
+                    c.close();
+                }
+                metrics.addLockTime(SystemClock.elapsedRealtime() - startTime);
+                SystemClock.sleep(CellBroadcastRetentionService.CHUNK_PAUSE_MSEC);
+                startTime = SystemClock.elapsedRealtime();
+            }
+        }
+        long freedPages = pageCount - DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        if (freedPages > 0) {
+            metrics.mBytesReclaimed += freedPages * pageSize;
+        }
+    }
+
+    /**
+     * Internal method to copy the write-ahead log into the database file, so that the log
+     * doesn't grow and readers don't have to search it. The checkpoint is passive: it copies
+     * what it can without waiting for readers or writers.
+     * @return true if the whole log was copied, so that every commit so far is synced to disk
+     */
+    boolean checkpoint() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long startTime = SystemClock.elapsedRealtime();
+        Cursor c = null;
+        try {
+            c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            // the result is (busy, frames in log, frames checkpointed)
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            if (CellBroadcastReceiver.DBG) {
+                Log.d(TAG, "checkpointed " + c.getInt(2) + " of " + c.getInt(1)
+                        + " WAL frames in " + (SystemClock.elapsedRealtime() - startTime)
+                        + "ms");
+            }
+            return c.getInt(0) == 0 && c.getInt(2) == c.getInt(1);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "can't checkpoint database", e);
+            return false;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
     /** Callback for users of AsyncCellBroadcastOperation. */
     interface CellBroadcastOperation {
         /**
@@ -17,8 +17,12 @@
 package com.android.cellbroadcastreceiver;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.provider.Telephony;
 import android.telephony.CellBroadcastMessage;
+import android.telephony.SubscriptionManager;
+import android.util.LongSparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -26,12 +30,69 @@ import android.widget.CursorAdapter;
 
 /**
  * The back-end data adapter for {@link CellBroadcastListActivity}.
+ *
+ * <p>Rows are bound from the few columns shown in the list, using column indices looked up
+ * once per cursor, into buffers held by each {@link CellBroadcastListItem}. The full
+ * {@link CellBroadcastMessage} is only created by {@link #getMessage} when the user selects a
+ * broadcast, so scrolling the list doesn't allocate a message for each row.
+ *
+ * <p>The title of a row only depends on a few small values, so titles are memoized by those
+ * values for the current cursor.
  */
 public class CellBroadcastCursorAdapter extends CursorAdapter {
 
+    // Column indices in the current cursor, or -1 if there is no cursor.
+    private int mServiceCategoryColumn = -1;
+    private int mDeliveryTimeColumn = -1;
+    private int mMessageBodyColumn = -1;
+    private int mMessageReadColumn = -1;
+    private int mMessagePriorityColumn = -1;
+    private int mEtwsWarningTypeColumn = -1;
+    private int mCmasMessageClassColumn = -1;
+
+    /**
+     * Subscription for the emergency channel check. Stored broadcasts don't record the
+     * subscription they were received on, so the default SMS subscription is used.
+     */
+    private int mSubId;
+
+    /** Title resource IDs by {@link #getTitleKey}, for the current cursor. */
+    private final LongSparseArray<Integer> mTitles = new LongSparseArray<Integer>();
+
     public CellBroadcastCursorAdapter(Context context, Cursor cursor) {
         // don't set FLAG_AUTO_REQUERY or FLAG_REGISTER_CONTENT_OBSERVER
         super(context, cursor, 0);
+        findColumns(cursor);
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        findColumns(newCursor);
+        return super.swapCursor(newCursor);
+    }
+
+    private void findColumns(Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        CellBroadcastListItem.checkDateFormat(mContext);
+        // the emergency channel ranges may have changed since the last cursor
+        mTitles.clear();
+        mSubId = SubscriptionManager.getDefaultSmsSubId();
+        mServiceCategoryColumn = cursor.getColumnIndexOrThrow(
+                Telephony.CellBroadcasts.SERVICE_CATEGORY);
+        mDeliveryTimeColumn = cursor.getColumnIndexOrThrow(
+                Telephony.CellBroadcasts.DELIVERY_TIME);
+        mMessageBodyColumn = cursor.getColumnIndexOrThrow(
+                Telephony.CellBroadcasts.MESSAGE_BODY);
+        mMessageReadColumn = cursor.getColumnIndexOrThrow(
+                Telephony.CellBroadcasts.MESSAGE_READ);
+        mMessagePriorityColumn = cursor.getColumnIndexOrThrow(
+                Telephony.CellBroadcasts.MESSAGE_PRIORITY);
+        mEtwsWarningTypeColumn = cursor.getColumnIndexOrThrow(
+                Telephony.CellBroadcasts.ETWS_WARNING_TYPE);
+        mCmasMessageClassColumn = cursor.getColumnIndexOrThrow(
+                Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS);
     }
 
     /**
@@ -44,13 +105,11 @@ public class CellBroadcastCursorAdapter extends CursorAdapter {
      */
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        CellBroadcastMessage message = CellBroadcastMessage.createFromCursor(cursor);
-
         LayoutInflater factory = LayoutInflater.from(context);
         CellBroadcastListItem listItem = (CellBroadcastListItem) factory.inflate(
                     R.layout.cell_broadcast_list_item, parent, false);
 
-        listItem.bind(message);
+        bindView(listItem, context, cursor);
         return listItem;
     }
 
@@ -63,8 +122,64 @@ public class CellBroadcastCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
-        CellBroadcastMessage message = CellBroadcastMessage.createFromCursor(cursor);
         CellBroadcastListItem listItem = (CellBroadcastListItem) view;
-        listItem.bind(message);
+        CharArrayBuffer body = listItem.getMessageBodyBuffer();
+        cursor.copyStringToBuffer(mMessageBodyColumn, body);
+
+        int etwsWarningType = cursor.isNull(mEtwsWarningTypeColumn)
+                ? CellBroadcastResources.TYPE_NOT_PRESENT
+                : cursor.getInt(mEtwsWarningTypeColumn);
+        int cmasMessageClass = cursor.isNull(mCmasMessageClassColumn)
+                ? CellBroadcastResources.TYPE_NOT_PRESENT
+                : cursor.getInt(mCmasMessageClassColumn);
+
+        listItem.bind(getTitleResource(cursor.getInt(mServiceCategoryColumn),
+                cursor.getInt(mMessagePriorityColumn), etwsWarningType, cmasMessageClass),
+                cursor.getLong(mDeliveryTimeColumn), cursor.getInt(mMessageReadColumn) != 0);
+    }
+
+    private int getTitleResource(int serviceCategory, int messagePriority, int etwsWarningType,
+            int cmasMessageClass) {
+        long key = getTitleKey(serviceCategory, messagePriority, etwsWarningType,
+                cmasMessageClass);
+        Integer titleResId = mTitles.get(key);
+        if (titleResId == null) {
+            boolean emergency = CellBroadcastConfigService.isEmergencyAlertMessage(
+                    serviceCategory, messagePriority, mSubId);
+            titleResId = CellBroadcastResources.getDialogTitleResource(etwsWarningType,
+                    cmasMessageClass, emergency);
+            mTitles.put(key, titleResId);
+        }
+        return titleResId;
+    }
+
+    /**
+     * Pack the values that determine the title into a key. Service categories are 16 bits and
+     * the other values are small enumerations, so 16 bits are kept for each.
+     */
+    private static long getTitleKey(int serviceCategory, int messagePriority,
+            int etwsWarningType, int cmasMessageClass) {
+        return ((long) (serviceCategory & 0xffff) << 48)
+                | ((long) (messagePriority & 0xffff) << 32)
+                | ((long) toTitleKeyField(etwsWarningType) << 16)
+                | toTitleKeyField(cmasMessageClass);
+    }
+
+    private static int toTitleKeyField(int type) {
+        // keep "not present" apart from type 0
+        return type == CellBroadcastResources.TYPE_NOT_PRESENT ? 0xffff : (type & 0xffff);
+    }
+
+    /**
+     * Returns the broadcast at a position in the list.
+     * @param position the position of the row
+     * @return the message, or null if there is no such row
+     */
+    CellBroadcastMessage getMessage(int position) {
+        Cursor cursor = getCursor();
+        if (cursor == null || !cursor.moveToPosition(position)) {
+            return null;
+        }
+        return CellBroadcastMessage.createFromCursor(cursor);
     }
 }
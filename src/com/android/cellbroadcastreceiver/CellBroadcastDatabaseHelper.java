@@ -19,6 +19,7 @@ package com.android.cellbroadcastreceiver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -43,6 +44,13 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
     static final String DATABASE_NAME = "cell_broadcasts.db";
     static final String TABLE_NAME = "broadcasts";
 
+    /**
+     * Full-text index of the message bodies. The index stores no text of its own: it is an
+     * external content table over {@link #TABLE_NAME}, with the row ID of each broadcast as
+     * the docid, kept in sync by triggers.
+     */
+    static final String FTS_TABLE_NAME = "broadcasts_fts";
+
     /** Temporary table for upgrading the database version. */
     static final String TEMP_TABLE_NAME = "old_broadcasts";
 
@@ -51,11 +59,45 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
      * Database version 2-9: (reserved for OEM database customization)
      * Database version 10: adds ETWS and CMAS columns and CDMA support
      * Database version 11: adds delivery time index
+     * Database version 12: adds full-text index of message bodies
+     */
+    static final int DATABASE_VERSION = 12;
+
+    /**
+     * Size of the write-ahead log in pages at which a commit checkpoints the log. Checkpoints
+     * are normally run by {@link CellBroadcastInsertQueue} when it is idle, so this only
+     * bounds the log if they can't run, and keeps checkpoints out of the commits of alerts.
      */
-    static final int DATABASE_VERSION = 11;
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 4000;
 
     CellBroadcastDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Readers, e.g. the history list, use their own connections and see the last commit,
+        // so they never wait for new broadcasts to be written, nor block them.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Set the pragmas of the connection that writes. SQLite applies these pragmas when they
+     * are compiled, which is done on the primary connection for statements other than
+     * queries, so they apply to the connection used for writing.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (db.getVersion() == 0) {
+            // New database: auto vacuum can only be set before the first table is created.
+            // Incremental auto vacuum lets CellBroadcastRetentionService release free pages a
+            // few at a time; existing databases are switched by rebuilding them once.
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        }
+        // In WAL mode, NORMAL only syncs at checkpoints: a commit can be lost on power loss,
+        // but the database can't be corrupted. Emergency alerts are journaled before they are
+        // written, and their journal records are kept until a checkpoint has synced the
+        // commit, see CellBroadcastInsertJournal.synced().
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        // returns the new value, so it can't be run with execSQL()
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES,
+                null);
     }
 
     @Override
@@ -83,6 +125,7 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
                 + Telephony.CellBroadcasts.CMAS_CERTAINTY + " INTEGER);");
 
         createDeliveryTimeIndex(db);
+        createFullTextIndex(db);
     }
 
     private void createDeliveryTimeIndex(SQLiteDatabase db) {
@@ -90,6 +133,35 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
                 + " (" + Telephony.CellBroadcasts.DELIVERY_TIME + ");");
     }
 
+    /**
+     * Create the full-text index of message bodies and the triggers that keep it in sync, and
+     * index the broadcasts already in the table.
+     */
+    private void createFullTextIndex(SQLiteDatabase db) {
+        final String body = Telephony.CellBroadcasts.MESSAGE_BODY;
+        final String rowId = Telephony.CellBroadcasts._ID;
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + FTS_TABLE_NAME + " USING fts4("
+                + "content=\"" + TABLE_NAME + "\", " + body + ");");
+
+        // An external content index must be updated while the old body is still in the table.
+        // Updates that don't change the body, e.g. marking a broadcast read, are ignored.
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + FTS_TABLE_NAME + "_bd BEFORE DELETE ON "
+                + TABLE_NAME + " BEGIN DELETE FROM " + FTS_TABLE_NAME
+                + " WHERE docid=old." + rowId + "; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + FTS_TABLE_NAME + "_bu BEFORE UPDATE OF "
+                + body + " ON " + TABLE_NAME + " BEGIN DELETE FROM " + FTS_TABLE_NAME
+                + " WHERE docid=old." + rowId + "; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + FTS_TABLE_NAME + "_au AFTER UPDATE OF "
+                + body + " ON " + TABLE_NAME + " BEGIN INSERT INTO " + FTS_TABLE_NAME
+                + "(docid, " + body + ") VALUES (new." + rowId + ", new." + body + "); END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + FTS_TABLE_NAME + "_ai AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN INSERT INTO " + FTS_TABLE_NAME
+                + "(docid, " + body + ") VALUES (new." + rowId + ", new." + body + "); END;");
+
+        db.execSQL("INSERT INTO " + FTS_TABLE_NAME + '(' + FTS_TABLE_NAME
+                + ") VALUES ('rebuild');");
+    }
+
     /** Columns to copy on database upgrade. */
     private static final String[] COLUMNS_V1 = {
             Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
@@ -161,6 +233,11 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
             createDeliveryTimeIndex(db);
             oldVersion++;
         }
+
+        if (oldVersion == 11) {
+            createFullTextIndex(db);
+            oldVersion++;
+        }
     }
 
     /**
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.Telephony;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Loader for {@link CellBroadcastListActivity} that loads the broadcast history a page at a
+ * time, most recently received first. The first page is loaded when the list is opened, and
+ * {@link #loadNextPage} loads the page after the last row loaded so far, using the delivery
+ * time and row ID of that row as the key, so each page costs the same however far the user
+ * has scrolled and however many broadcasts are kept.
+ *
+ * <p>The delivered cursor is a {@link MergeCursor} over the pages loaded so far. The pages are
+ * owned by the loader and shared by the cursors it delivers, so delivered cursors must not be
+ * closed by the caller. When newly received broadcasts are added, only the rows received after
+ * the first row loaded are queried, as a new first page, and the pages already loaded are
+ * kept, so each batch of an alert storm costs only its own rows. When other rows change
+ * (broadcasts read, deleted or expired), or after {@link #MAX_PAGES} pages, the rows loaded so
+ * far are reloaded as one page, since the change may be in any page; these changes come from
+ * the user or the daily cleanup, not from an alert storm.
+ *
+ * <p>When created with search keywords, the loader pages through the broadcasts matching the
+ * keywords from the full-text index instead, best matches first. Search results are ranked,
+ * so they don't have a key and pages are loaded by offset into the results.
+ */
+final class CellBroadcastHistoryLoader extends AsyncTaskLoader<Cursor> {
+    private static final String TAG = "CellBroadcastHistoryLoader";
+
+    /** Number of broadcasts per page; enough to fill a screen a few times. */
+    static final int PAGE_SIZE = 50;
+
+    /** Maximum number of pages before the rows loaded are reloaded as one page. */
+    private static final int MAX_PAGES = 16;
+
+    /**
+     * Observes the provider with the notification URI, which the cursors don't pass on, to
+     * tell new broadcasts from other changes.
+     */
+    private final class ChangeObserver extends ContentObserver {
+        ChangeObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (CellBroadcastContentProvider.NEW_BROADCASTS_URI.equals(uri)) {
+                mNewRowsRequested = true;
+            } else {
+                mReloadRequested = true;
+            }
+            onContentChanged();
+        }
+    }
+
+    private final ChangeObserver mObserver = new ChangeObserver();
+
+    /** The observer is registered. Main thread only. */
+    private boolean mObserverRegistered;
+
+    /** Search keywords, or null to load all broadcasts. */
+    private final String mKeywords;
+
+    /** The pages loaded so far, with the key of the next page. */
+    private static final class PagedCursor extends MergeCursor {
+        final Cursor[] mPages;
+        final int mRowCount;
+        final long mLastTime;
+        final long mLastId;
+        final boolean mHasMore;
+
+        /** Key of the first row, where the page of new broadcasts ends. */
+        final long mFirstTime;
+        final long mFirstId;
+
+        /** The change this cursor loads: one of the LOAD_* constants. */
+        final int mLoad;
+
+        PagedCursor(Cursor[] pages, int rowCount, long firstTime, long firstId, long lastTime,
+                long lastId, boolean hasMore, int load) {
+            super(pages);
+            mPages = pages;
+            mRowCount = rowCount;
+            mFirstTime = firstTime;
+            mFirstId = firstId;
+            mLastTime = lastTime;
+            mLastId = lastId;
+            mHasMore = hasMore;
+            mLoad = load;
+        }
+    }
+
+    /** Load the rows shown so far again as one page. */
+    private static final int LOAD_ALL = 0;
+
+    /** Load the broadcasts received after the first row shown. */
+    private static final int LOAD_NEW_ROWS = 1;
+
+    /** Load the page after the rows shown. */
+    private static final int LOAD_NEXT_PAGE = 2;
+
+    /** The cursor delivered last; set on the main thread, read by loads in the background. */
+    private volatile PagedCursor mCursor;
+
+    /** Set by {@link #loadNextPage}; cleared when the next load reloads all rows. */
+    private volatile boolean mNextPageRequested;
+
+    /** Set when the database changed and the next load must reload all rows. */
+    private volatile boolean mReloadRequested;
+
+    /** Set when new broadcasts were added and the next load must load them. */
+    private volatile boolean mNewRowsRequested;
+
+    /** A load for the next page is in progress. Main thread only. */
+    private boolean mLoadingNextPage;
+
+    /**
+     * @param keywords the keywords to search for, or null to load all broadcasts
+     */
+    CellBroadcastHistoryLoader(Context context, String keywords) {
+        super(context);
+        mKeywords = keywords;
+    }
+
+    /**
+     * Load the page after the last row loaded, if there are more rows and no page is loading.
+     * Must be called on the main thread.
+     */
+    void loadNextPage() {
+        PagedCursor cursor = mCursor;
+        if (mLoadingNextPage || cursor == null || !cursor.mHasMore) {
+            return;
+        }
+        if (DBG) Log.d(TAG, "loading page after " + cursor.mRowCount + " rows");
+        mLoadingNextPage = true;
+        mNextPageRequested = true;
+        forceLoad();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PagedCursor base = mCursor;
+        int load;
+        if (base == null || mReloadRequested) {
+            load = LOAD_ALL;
+        } else if (mNewRowsRequested) {
+            // search results are ranked, so new broadcasts may belong in any page
+            load = (mKeywords == null && base.mRowCount != 0
+                    && base.mPages.length < MAX_PAGES) ? LOAD_NEW_ROWS : LOAD_ALL;
+        } else if (mNextPageRequested) {
+            load = LOAD_NEXT_PAGE;
+        } else {
+            load = LOAD_ALL;
+        }
+        mReloadRequested = false;
+        mNewRowsRequested = false;
+        mNextPageRequested = false;
+
+        Cursor page;
+        int limit;
+        if (load == LOAD_ALL) {
+            // reload the rows already shown, so that the list doesn't shrink
+            limit = Math.max(PAGE_SIZE, base != null ? base.mRowCount : 0);
+            page = queryPage(limit, null);
+        } else if (load == LOAD_NEW_ROWS) {
+            limit = -1;
+            page = getContext().getContentResolver().query(
+                    CellBroadcastContentProvider.getNewerPageUri(base.mFirstTime, base.mFirstId),
+                    Telephony.CellBroadcasts.QUERY_COLUMNS, null, null,
+                    CellBroadcastContentProvider.PAGE_SORT_ORDER);
+        } else {
+            limit = PAGE_SIZE;
+            page = queryPage(limit, base);
+        }
+        if (page == null) {
+            return null;
+        }
+
+        int count = page.getCount();    // fill the window in the background
+        if (load == LOAD_NEW_ROWS && count == 0) {
+            // nothing new to show: deliver the same pages
+            page.close();
+            return new PagedCursor(base.mPages, base.mRowCount, base.mFirstTime, base.mFirstId,
+                    base.mLastTime, base.mLastId, base.mHasMore, load);
+        }
+        int timeColumn = page.getColumnIndexOrThrow(Telephony.CellBroadcasts.DELIVERY_TIME);
+        int idColumn = page.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID);
+        long firstTime = 0;
+        long firstId = -1;
+        long lastTime = 0;
+        long lastId = -1;
+        if (page.moveToFirst()) {
+            firstTime = page.getLong(timeColumn);
+            firstId = page.getLong(idColumn);
+            page.moveToLast();
+            lastTime = page.getLong(timeColumn);
+            lastId = page.getLong(idColumn);
+        }
+        page.moveToPosition(-1);
+
+        if (load == LOAD_ALL) {
+            return new PagedCursor(new Cursor[] {page}, count, firstTime, firstId, lastTime,
+                    lastId, count == limit, load);
+        }
+        Cursor[] pages;
+        if (load == LOAD_NEW_ROWS) {
+            // the new broadcasts go before the pages loaded so far, which are unchanged
+            pages = new Cursor[base.mPages.length + 1];
+            pages[0] = page;
+            System.arraycopy(base.mPages, 0, pages, 1, base.mPages.length);
+            return new PagedCursor(pages, base.mRowCount + count, firstTime, firstId,
+                    base.mLastTime, base.mLastId, base.mHasMore, load);
+        }
+        pages = Arrays.copyOf(base.mPages, base.mPages.length + 1);
+        pages[base.mPages.length] = page;
+        if (count == 0) {
+            lastTime = base.mLastTime;
+            lastId = base.mLastId;
+        }
+        return new PagedCursor(pages, base.mRowCount + count, base.mFirstTime, base.mFirstId,
+                lastTime, lastId, count == limit, load);
+    }
+
+    /**
+     * Query the page after the rows loaded so far.
+     * @param limit the maximum number of rows in the page
+     * @param base the rows loaded so far, or null for the first page
+     */
+    private Cursor queryPage(int limit, PagedCursor base) {
+        Uri uri;
+        if (mKeywords != null) {
+            uri = CellBroadcastContentProvider.getSearchUri(mKeywords, limit,
+                    base != null ? base.mRowCount : 0);
+        } else if (base != null) {
+            uri = CellBroadcastContentProvider.getPageUri(limit, base.mLastTime, base.mLastId);
+        } else {
+            uri = CellBroadcastContentProvider.getPageUri(limit, 0, -1);
+        }
+        return getContext().getContentResolver().query(uri,
+                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null,
+                CellBroadcastContentProvider.PAGE_SORT_ORDER);
+    }
+
+    @Override
+    public void deliverResult(Cursor data) {
+        PagedCursor cursor = (PagedCursor) data;
+        mLoadingNextPage = false;
+        if (isReset()) {
+            // an async query came in while the loader is stopped
+            closePages(cursor, null);
+            return;
+        }
+        PagedCursor oldCursor = mCursor;
+        if (cursor != null) {
+            mCursor = cursor;
+        }
+
+        if (isStarted()) {
+            super.deliverResult(cursor != null ? cursor : oldCursor);
+        }
+
+        if (cursor != null && oldCursor != null && cursor != oldCursor) {
+            closePages(oldCursor, cursor);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    CellBroadcastContentProvider.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor data) {
+        PagedCursor cursor = (PagedCursor) data;
+        mLoadingNextPage = false;
+        // the change still has to be loaded
+        if (cursor != null && cursor.mLoad == LOAD_ALL) {
+            mReloadRequested = true;
+        } else if (cursor != null && cursor.mLoad == LOAD_NEW_ROWS) {
+            mNewRowsRequested = true;
+        }
+        closePages(cursor, mCursor);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        closePages(mCursor, null);
+        mCursor = null;
+        mLoadingNextPage = false;
+    }
+
+    /** Close the pages of a cursor that are not shared with the cursor to keep. */
+    private static void closePages(PagedCursor cursor, PagedCursor keep) {
+        if (cursor == null) {
+            return;
+        }
+        for (Cursor page : cursor.mPages) {
+            if (keep == null || !contains(keep.mPages, page)) {
+                page.close();
+            }
+        }
+    }
+
+    private static boolean contains(Cursor[] pages, Cursor page) {
+        for (Cursor c : pages) {
+            if (c == page) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for emergency alerts that are shown before they are written to the
+ * database. {@link CellBroadcastInsertQueue} appends the database row of each such alert to
+ * the journal and syncs it to disk on the caller's thread before the alert is shown, and
+ * deletes the journal once all journaled rows have been committed and a checkpoint of the
+ * write-ahead log has synced the commits to disk: the database is written with
+ * {@code synchronous = NORMAL}, so a commit alone can be lost on power loss. Rows left in the
+ * journal when the process died are replayed into the database when the insert queue starts,
+ * skipping rows that were already committed.
+ *
+ * <p>Each record holds the row's column values with a type tag, followed by a CRC32 of the
+ * record, so that a record torn by a crash during the append is ignored on replay.
+ */
+final class CellBroadcastInsertJournal {
+    private static final String TAG = "CellBroadcastInsertJournal";
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_INTEGER = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_BOOLEAN = 4;
+
+    private final File mFile;
+
+    /** Number of journaled rows not yet committed to the database; guarded by this. */
+    private int mPendingCount;
+
+    /**
+     * Length of the journal left by the previous process, to replay on the next flush; guarded
+     * by this. Cleared by {@link #replayed} once the rows have been written.
+     */
+    private long mReplayLength;
+
+    CellBroadcastInsertJournal(File file) {
+        mFile = file;
+        mReplayLength = file.length();
+    }
+
+    /** Returns true if the journal has rows left by the previous process. */
+    static boolean hasRecords(File file) {
+        return file.length() > 0;
+    }
+
+    /** Returns true if the journal has rows that are not yet synced to the database. */
+    boolean hasRecords() {
+        return hasRecords(mFile);
+    }
+
+    /**
+     * Append a row to the journal and sync it to disk.
+     * @param values the row to append, as returned by
+     *     {@link android.telephony.CellBroadcastMessage#getContentValues()}
+     * @return true if the row was written; false on I/O error
+     */
+    synchronized boolean append(ContentValues values) {
+        byte[] record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(values.size());
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                out.writeUTF(entry.getKey());
+                Object value = entry.getValue();
+                if (value == null) {
+                    out.writeByte(TYPE_NULL);
+                } else if (value instanceof Integer) {
+                    out.writeByte(TYPE_INTEGER);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(TYPE_LONG);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Boolean) {
+                    out.writeByte(TYPE_BOOLEAN);
+                    out.writeBoolean((Boolean) value);
+                } else {
+                    out.writeByte(TYPE_STRING);
+                    out.writeUTF(value.toString());
+                }
+            }
+            out.flush();
+            record = bytes.toByteArray();
+        } catch (IOException e) {
+            Log.e(TAG, "can't serialize journal record", e);   // not reached
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, true);
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+            mPendingCount++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "can't append to journal " + mFile, e);
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that journaled rows have been committed to the database. The rows are kept in the
+     * journal until {@link #synced}.
+     * @param count the number of journaled rows committed
+     */
+    synchronized void committed(int count) {
+        mPendingCount -= count;
+    }
+
+    /**
+     * Record that the rows left by the previous process have been written to the database.
+     * The rows are kept in the journal until {@link #synced}.
+     */
+    synchronized void replayed() {
+        mReplayLength = 0;
+    }
+
+    /**
+     * Record that every commit so far has been synced to disk by a checkpoint, and delete the
+     * journal if all journaled rows have been committed.
+     */
+    synchronized void synced() {
+        if (mPendingCount <= 0 && mReplayLength == 0) {
+            mPendingCount = 0;
+            if (mFile.exists() && !mFile.delete()) {
+                Log.e(TAG, "can't delete journal " + mFile);
+            }
+        }
+    }
+
+    /**
+     * Read the rows left in the journal by the previous process. Rows appended by this
+     * process are not returned. Reading stops at the first incomplete or corrupt record.
+     * The rows are returned again by the next call until {@link #replayed} is called, so
+     * they can be replayed again if writing them fails.
+     * @return the rows to write to the database, or an empty list
+     */
+    synchronized List<ContentValues> readReplayRecords() {
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        long remaining = mReplayLength;
+        if (remaining == 0) {
+            return rows;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            while (remaining >= 8) {
+                int length = in.readInt();
+                if (length <= 0 || length > remaining - 8) {
+                    Log.e(TAG, "bad journal record length " + length);
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                int checksum = in.readInt();
+                remaining -= length + 8;
+
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    Log.e(TAG, "bad journal record checksum");
+                    break;
+                }
+                rows.add(readRecord(record));
+            }
+        } catch (EOFException e) {
+            Log.e(TAG, "journal record truncated");
+        } catch (IOException e) {
+            Log.e(TAG, "can't read journal " + mFile, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static ContentValues readRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        int count = in.readInt();
+        ContentValues values = new ContentValues(count);
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            int type = in.readByte();
+            switch (type) {
+                case TYPE_NULL:
+                    values.putNull(key);
+                    break;
+
+                case TYPE_INTEGER:
+                    values.put(key, in.readInt());
+                    break;
+
+                case TYPE_LONG:
+                    values.put(key, in.readLong());
+                    break;
+
+                case TYPE_BOOLEAN:
+                    values.put(key, in.readBoolean());
+                    break;
+
+                case TYPE_STRING:
+                    values.put(key, in.readUTF());
+                    break;
+
+                default:
+                    throw new IOException("unknown journal value type " + type);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbMessage;
+import android.util.Log;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single writer for new broadcasts. Messages are queued by {@link CellBroadcastAlertService}
+ * and written to {@link CellBroadcastContentProvider} on a dedicated thread in group
+ * transactions, either when {@link #MAX_BATCH_SIZE} messages are pending or
+ * {@link #BATCH_DELAY_MSEC} after the first message of a batch was queued. Observers are
+ * notified once per batch. Emergency alerts flush the queue immediately.
+ *
+ * <p>Emergency alerts and other broadcasts are queued in separate lanes. Emergency alerts are
+ * shown without waiting for the write, so their lane only needs to be written promptly: each
+ * batch is taken from the emergency lane first, so that a backlog of ordinary broadcasts never
+ * delays saving an alert the user has already seen, and the emergency lane is never full.
+ *
+ * <p>After a batch is committed, the alert intent of each message is started in the order the
+ * messages were received, so the alert or notification is shown once the broadcast is saved.
+ * Emergency alerts are instead shown before they are saved, see {@link #enqueueShownAlert}.
+ * Their rows are recorded in a {@link CellBroadcastInsertJournal} on the caller's thread when
+ * they are queued, and rows left in the journal by a previous process are written before any
+ * new batch.
+ *
+ * <p>The write-ahead log of the database is checkpointed on the writer thread once no
+ * messages have been queued for {@link #CHECKPOINT_DELAY_MSEC}. The database doesn't sync
+ * commits until a checkpoint, so journaled rows are only deleted from the journal once a
+ * checkpoint has copied the whole log.
+ */
+final class CellBroadcastInsertQueue {
+    private static final String TAG = "CellBroadcastInsertQueue";
+
+    /** Maximum number of messages to write in one transaction. */
+    private static final int MAX_BATCH_SIZE = 32;
+
+    /** Maximum time to hold a non-emergency message before writing the batch. */
+    private static final int BATCH_DELAY_MSEC = 250;
+
+    /**
+     * Maximum number of non-emergency messages waiting to be written. If the database can't
+     * keep up, further non-emergency messages are still displayed, but not saved.
+     */
+    private static final int MAX_QUEUE_SIZE = 1024;
+
+    /** Emergency alerts, already shown to the user. */
+    private static final int LANE_EMERGENCY = 0;
+
+    /** Non-emergency broadcasts, shown once they have been written. */
+    private static final int LANE_NORMAL = 1;
+
+    private static final int LANE_COUNT = 2;
+
+    private static final String[] LANE_NAMES = {"emergency", "normal"};
+
+    /** Name of the file in the app's files directory holding the insert journal. */
+    private static final String JOURNAL_FILE = "insert_journal";
+
+    /** Time without new messages before the write-ahead log is checkpointed. */
+    private static final int CHECKPOINT_DELAY_MSEC = 5000;
+
+    /** Time before writing the rows left in the journal is tried again after a failure. */
+    private static final int REPLAY_RETRY_DELAY_MSEC = 30000;
+
+    private static final int MSG_FLUSH = 1;
+    private static final int MSG_CHECKPOINT = 2;
+    private static final int MSG_RETRY_REPLAY = 3;
+
+    private static CellBroadcastInsertQueue sInstance;
+
+    /**
+     * A message waiting to be written, and the intent to start once it has been written, or
+     * null if the alert has already been shown.
+     */
+    private static final class PendingInsert {
+        final CellBroadcastMessage mMessage;
+        /** The contents of the message as received, bound to the insert statement. */
+        final SmsCbMessage mSmsCbMessage;
+        final Intent mAlertIntent;
+        final long mEnqueueTime;
+        /** True if the row was journaled when it was queued. */
+        final boolean mJournaled;
+
+        PendingInsert(CellBroadcastMessage message, SmsCbMessage smsCbMessage,
+                Intent alertIntent, long enqueueTime, boolean journaled) {
+            mMessage = message;
+            mSmsCbMessage = smsCbMessage;
+            mAlertIntent = alertIntent;
+            mEnqueueTime = enqueueTime;
+            mJournaled = journaled;
+        }
+    }
+
+    /** Messages waiting to be written in one priority lane, with statistics for dumpsys. */
+    private static final class Lane {
+        /** Messages waiting to be written; guarded by the queue lock. */
+        final ArrayList<PendingInsert> mPending = new ArrayList<PendingInsert>();
+
+        // statistics, guarded by the queue lock
+        int mMaxDepth;
+        long mWrittenCount;
+        long mTotalWaitMillis;
+        long mMaxWaitMillis;
+        long mDroppedCount;
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final CellBroadcastInsertJournal mJournal;
+
+    /**
+     * True once rows left in the journal have been written; only used on the writer thread.
+     * The replay is tried again on every flush until it succeeds, and after
+     * {@link #REPLAY_RETRY_DELAY_MSEC} if no other message is queued.
+     */
+    private boolean mJournalReplayed;
+
+    /** Lock for the lanes. */
+    private final Object mLock = new Object();
+
+    /** Messages waiting to be written, indexed by lane. */
+    private final Lane[] mLanes = new Lane[LANE_COUNT];
+
+    /** Batch being written, only used on the writer thread. */
+    private final ArrayList<PendingInsert> mBatch = new ArrayList<PendingInsert>();
+    private final ArrayList<CellBroadcastMessage> mBatchMessages =
+            new ArrayList<CellBroadcastMessage>();
+    private final ArrayList<SmsCbMessage> mBatchSmsCbMessages = new ArrayList<SmsCbMessage>();
+
+    private CellBroadcastInsertQueue(Context context) {
+        mContext = context.getApplicationContext();
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new Lane();
+        }
+        mJournal = new CellBroadcastInsertJournal(new File(mContext.getFilesDir(), JOURNAL_FILE));
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new WriterHandler(thread.getLooper());
+        // write any rows left in the journal by the previous process
+        mHandler.sendEmptyMessage(MSG_FLUSH);
+    }
+
+    /**
+     * Start the insert queue if the previous process left rows in the journal, so that they
+     * are written without waiting for the next broadcast. Called at application start.
+     */
+    static void replayJournalIfNeeded(Context context) {
+        if (CellBroadcastInsertJournal.hasRecords(new File(context.getFilesDir(), JOURNAL_FILE))) {
+            getInstance(context);
+        }
+    }
+
+    /** Returns the insert queue, starting the writer thread on first use. */
+    static synchronized CellBroadcastInsertQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CellBroadcastInsertQueue(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue a new broadcast to be written to the database.
+     * @param message the broadcast to write
+     * @param smsCbMessage the contents of the broadcast, as received
+     * @param alertIntent the intent to start once the broadcast has been written
+     * @param emergency true to write the message (and any queued messages) immediately
+     */
+    void enqueue(CellBroadcastMessage message, SmsCbMessage smsCbMessage, Intent alertIntent,
+            boolean emergency) {
+        enqueue(new PendingInsert(message, smsCbMessage, alertIntent,
+                SystemClock.elapsedRealtime(), false), emergency);
+    }
+
+    /**
+     * Queue an emergency alert that is shown before it is written to the database. The row is
+     * appended to the journal and synced to disk before this method returns, so that it is
+     * written even if the process dies before the database commit.
+     * @param message the emergency alert to write
+     * @param smsCbMessage the contents of the alert, as received
+     * @return true if the row was journaled; false if it is only queued
+     */
+    boolean enqueueShownAlert(CellBroadcastMessage message, SmsCbMessage smsCbMessage) {
+        boolean journaled = mJournal.append(message.getContentValues());
+        enqueue(new PendingInsert(message, smsCbMessage, null, SystemClock.elapsedRealtime(),
+                journaled), true);
+        return journaled;
+    }
+
+    private void enqueue(PendingInsert insert, boolean emergency) {
+        mHandler.removeMessages(MSG_CHECKPOINT);
+        Lane lane = mLanes[emergency ? LANE_EMERGENCY : LANE_NORMAL];
+        int queueSize = 0;
+        long droppedCount = 0;
+        synchronized (mLock) {
+            if (!emergency && lane.mPending.size() >= MAX_QUEUE_SIZE) {
+                droppedCount = ++lane.mDroppedCount;
+            } else {
+                lane.mPending.add(insert);
+                queueSize = lane.mPending.size();
+                if (queueSize > lane.mMaxDepth) {
+                    lane.mMaxDepth = queueSize;
+                }
+            }
+        }
+        if (droppedCount != 0) {
+            Log.e(TAG, "insert queue full, not saving broadcast (dropped " + droppedCount + ')');
+            mContext.startService(insert.mAlertIntent);
+            return;
+        }
+
+        if (emergency) {
+            // write the alert ahead of any pending checkpoint or delayed batch
+            mHandler.removeMessages(MSG_FLUSH);
+            mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(MSG_FLUSH));
+        } else if (queueSize >= MAX_BATCH_SIZE) {
+            mHandler.removeMessages(MSG_FLUSH);
+            mHandler.sendEmptyMessage(MSG_FLUSH);
+        } else if (queueSize == 1) {
+            // first message of a new batch: wait briefly for more to arrive
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, BATCH_DELAY_MSEC);
+        }
+    }
+
+    private final class WriterHandler extends Handler {
+        WriterHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_FLUSH:
+                case MSG_RETRY_REPLAY:
+                    boolean wrote = false;
+                    while (flush()) {
+                        // keep writing until the queue is empty
+                        wrote = true;
+                    }
+                    if (wrote) {
+                        // checkpoint once no more messages arrive, so that checkpoints
+                        // never delay writing an alert
+                        removeMessages(MSG_CHECKPOINT);
+                        sendEmptyMessageDelayed(MSG_CHECKPOINT, CHECKPOINT_DELAY_MSEC);
+                    }
+                    break;
+
+                case MSG_CHECKPOINT:
+                    checkpoint();
+                    break;
+
+                default:
+                    Log.e(TAG, "Handler received unknown message, what=" + msg.what);
+            }
+        }
+    }
+
+    /**
+     * Write up to {@link #MAX_BATCH_SIZE} queued messages from the highest priority lane that
+     * has messages waiting in one transaction, notify observers and start the alert intents.
+     * Called on the writer thread.
+     * @return true if more messages are waiting to be written
+     */
+    private boolean flush() {
+        if (!mJournalReplayed) {
+            mJournalReplayed = replayJournal();
+            if (!mJournalReplayed) {
+                mHandler.removeMessages(MSG_RETRY_REPLAY);
+                mHandler.sendEmptyMessageDelayed(MSG_RETRY_REPLAY, REPLAY_RETRY_DELAY_MSEC);
+            }
+        }
+
+        Lane lane = null;
+        synchronized (mLock) {
+            for (Lane l : mLanes) {
+                if (!l.mPending.isEmpty()) {
+                    lane = l;
+                    break;
+                }
+            }
+            if (lane == null) {
+                return false;
+            }
+            int count = Math.min(lane.mPending.size(), MAX_BATCH_SIZE);
+            for (int i = 0; i < count; i++) {
+                mBatch.add(lane.mPending.get(i));
+            }
+            lane.mPending.subList(0, count).clear();
+        }
+
+        int journaledCount = 0;
+        for (int i = 0, n = mBatch.size(); i < n; i++) {
+            PendingInsert insert = mBatch.get(i);
+            mBatchMessages.add(insert.mMessage);
+            mBatchSmsCbMessages.add(insert.mSmsCbMessage);
+            if (insert.mJournaled) {
+                journaledCount++;
+            }
+        }
+
+        boolean written = write(mBatchMessages, mBatchSmsCbMessages, null);
+
+        // Show the alerts even if the write failed, since the messages are passed with the
+        // intents (see CellBroadcastContentProvider.insertNewBroadcasts()).
+        for (int i = 0, n = mBatch.size(); i < n; i++) {
+            PendingInsert insert = mBatch.get(i);
+            if (written) {
+                CellBroadcastAlertTrace.stamp(insert.mMessage,
+                        CellBroadcastAlertTrace.STAGE_DB_INSERT);
+            }
+            if (insert.mAlertIntent != null) {
+                mContext.startService(insert.mAlertIntent);
+            }
+        }
+        if (written && journaledCount != 0) {
+            mJournal.committed(journaledCount);
+        }
+
+        ContentResolver resolver = mContext.getContentResolver();
+        if (CellBroadcastReceiver.DBG) {
+            Log.d(TAG, "wrote batch of " + mBatch.size() + ": notifying observers...");
+        }
+        resolver.notifyChange(CellBroadcastContentProvider.NEW_BROADCASTS_URI, null, false);
+
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            for (int i = 0, n = mBatch.size(); i < n; i++) {
+                long wait = now - mBatch.get(i).mEnqueueTime;
+                lane.mTotalWaitMillis += wait;
+                if (wait > lane.mMaxWaitMillis) {
+                    lane.mMaxWaitMillis = wait;
+                }
+            }
+            lane.mWrittenCount += mBatch.size();
+        }
+
+        mBatch.clear();
+        mBatchMessages.clear();
+        mBatchSmsCbMessages.clear();
+        return true;    // check the lanes again
+    }
+
+    /**
+     * Write the rows left in the journal by the previous process, skipping any that were
+     * already committed before the process died. Called on the writer thread.
+     * @return true if the rows were written; false to try again on the next flush
+     */
+    private boolean replayJournal() {
+        List<ContentValues> rows = mJournal.readReplayRecords();
+        if (rows.isEmpty()) {
+            // nothing to write: delete an empty or corrupt journal
+            mJournal.replayed();
+            mJournal.synced();
+            return true;
+        }
+        Log.d(TAG, "replaying " + rows.size() + " journaled broadcasts");
+        if (!write(null, null, rows)) {
+            Log.e(TAG, "can't replay journal, trying again on the next flush");
+            return false;
+        }
+        mJournal.replayed();
+        mContext.getContentResolver().notifyChange(
+                CellBroadcastContentProvider.CONTENT_URI, null, false);
+        // delete the journal once the rows are synced
+        mHandler.removeMessages(MSG_CHECKPOINT);
+        mHandler.sendEmptyMessageDelayed(MSG_CHECKPOINT, CHECKPOINT_DELAY_MSEC);
+        return true;
+    }
+
+    /**
+     * Write new broadcasts and/or journaled rows to the database. Called on the writer thread.
+     * @param messages new broadcasts to insert, or null
+     * @param smsCbMessages the contents of the new broadcasts, in the same order, or null
+     * @param journaledRows rows read from the journal to insert if not already present, or null
+     * @return true if the provider was available to write to
+     */
+    private boolean write(List<CellBroadcastMessage> messages, List<SmsCbMessage> smsCbMessages,
+            List<ContentValues> journaledRows) {
+        ContentProviderClient cpc = mContext.getContentResolver().acquireContentProviderClient(
+                CellBroadcastContentProvider.CB_AUTHORITY);
+        try {
+            CellBroadcastContentProvider provider = (cpc != null) ?
+                    (CellBroadcastContentProvider) cpc.getLocalContentProvider() : null;
+            if (provider == null) {
+                Log.e(TAG, "getLocalContentProvider() returned null");
+                return false;
+            }
+            if (journaledRows != null) {
+                provider.insertJournaledBroadcasts(journaledRows);
+            }
+            if (messages != null) {
+                provider.insertNewBroadcasts(messages, smsCbMessages);
+            }
+            return true;
+        } finally {
+            if (cpc != null) {
+                cpc.release();
+            }
+        }
+    }
+
+    /**
+     * Checkpoint the write-ahead log of the database, and delete the journal once the journaled
+     * rows are synced. Called on the writer thread.
+     */
+    private void checkpoint() {
+        ContentProviderClient cpc = mContext.getContentResolver().acquireContentProviderClient(
+                CellBroadcastContentProvider.CB_AUTHORITY);
+        try {
+            CellBroadcastContentProvider provider = (cpc != null) ?
+                    (CellBroadcastContentProvider) cpc.getLocalContentProvider() : null;
+            if (provider != null && provider.checkpoint()) {
+                mJournal.synced();
+            } else if (mJournal.hasRecords()) {
+                // readers kept part of the log: try again to sync the journaled rows
+                mHandler.sendEmptyMessageDelayed(MSG_CHECKPOINT, CHECKPOINT_DELAY_MSEC);
+            }
+        } finally {
+            if (cpc != null) {
+                cpc.release();
+            }
+        }
+    }
+
+    /** Dump per-lane queue statistics for dumpsys. */
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            for (int i = 0; i < LANE_COUNT; i++) {
+                Lane lane = mLanes[i];
+                pw.println("  " + LANE_NAMES[i] + " lane: depth=" + lane.mPending.size()
+                        + " maxDepth=" + lane.mMaxDepth
+                        + " written=" + lane.mWrittenCount
+                        + " avgWait=" + (lane.mWrittenCount > 0 ?
+                                lane.mTotalWaitMillis / lane.mWrittenCount : 0) + "ms"
+                        + " maxWait=" + lane.mMaxWaitMillis + "ms"
+                        + " dropped=" + lane.mDroppedCount);
+            }
+        }
+    }
+
+    /** Returns the insert queue if it has been started, or null. */
+    static synchronized CellBroadcastInsertQueue peekInstance() {
+        return sInstance;
+    }
+}
@@ -23,7 +23,6 @@ import android.app.ListFragment;
 import android.app.LoaderManager;
 import android.app.NotificationManager;
 import android.content.Context;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
@@ -31,7 +30,6 @@ import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.UserHandle;
-import android.provider.Telephony;
 import android.telephony.CellBroadcastMessage;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -41,9 +39,13 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnCreateContextMenuListener;
+import android.text.TextUtils;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.AbsListView;
+import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ListView;
+import android.widget.SearchView;
+import android.widget.TextView;
 
 import java.util.ArrayList;
 
@@ -71,7 +73,10 @@ public class CellBroadcastListActivity extends Activity {
     }
 
     /**
-     * List fragment queries SQLite database on worker thread.
+     * List fragment queries SQLite database on worker thread. The history is loaded a page at a
+     * time by {@link CellBroadcastHistoryLoader}, and the next page is loaded when the user
+     * scrolls near the end of the rows loaded so far. Typing in the search box in the action
+     * bar restarts the loader to page through the broadcasts matching the keywords instead.
      */
     public static class CursorLoaderListFragment extends ListFragment
             implements LoaderManager.LoaderCallbacks<Cursor> {
@@ -79,13 +84,23 @@ public class CellBroadcastListActivity extends Activity {
         // IDs of the main menu items.
         private static final int MENU_DELETE_ALL           = 3;
         private static final int MENU_PREFERENCES          = 4;
+        private static final int MENU_SEARCH               = 5;
+
+        // Loader argument for the search keywords.
+        private static final String ARG_KEYWORDS = "keywords";
+
+        // Load the next page when the last visible row is this close to the last loaded row.
+        private static final int PAGE_PREFETCH_ROWS = 20;
 
         // IDs of the context menu items (package local, accessed from inner DeleteThreadListener).
         static final int MENU_DELETE               = 0;
         static final int MENU_VIEW_DETAILS         = 1;
 
         // This is the Adapter being used to display the list's data.
-        CursorAdapter mAdapter;
+        CellBroadcastCursorAdapter mAdapter;
+
+        // The keywords being searched for, or null to show all broadcasts.
+        private String mKeywords;
 
         @Override
         public void onCreate(Bundle savedInstanceState) {
@@ -108,6 +123,7 @@ public class CellBroadcastListActivity extends Activity {
             // Set context menu for long-press.
             ListView listView = getListView();
             listView.setOnCreateContextMenuListener(mOnCreateContextMenuListener);
+            listView.setOnScrollListener(mOnScrollListener);
 
             // Create a cursor adapter to display the loaded data.
             mAdapter = new CellBroadcastCursorAdapter(getActivity(), null);
@@ -120,6 +136,14 @@ public class CellBroadcastListActivity extends Activity {
 
         @Override
         public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+            SearchView searchView = new SearchView(getActivity());
+            searchView.setQueryHint(getString(R.string.search_hint));
+            searchView.setOnQueryTextListener(mOnQueryTextListener);
+            menu.add(0, MENU_SEARCH, 0, R.string.menu_search)
+                    .setIcon(android.R.drawable.ic_menu_search)
+                    .setActionView(searchView)
+                    .setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM
+                            | MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
             menu.add(0, MENU_DELETE_ALL, 0, R.string.menu_delete_all).setIcon(
                     android.R.drawable.ic_menu_delete);
             if (UserHandle.myUserId() == UserHandle.USER_OWNER) {
@@ -130,26 +154,28 @@ public class CellBroadcastListActivity extends Activity {
 
         @Override
         public void onPrepareOptionsMenu(Menu menu) {
-            menu.findItem(MENU_DELETE_ALL).setVisible(!mAdapter.isEmpty());
+            // delete all is hidden while searching, as it doesn't only delete the results
+            menu.findItem(MENU_DELETE_ALL).setVisible(mKeywords == null && !mAdapter.isEmpty());
         }
 
         @Override
         public void onListItemClick(ListView l, View v, int position, long id) {
-            CellBroadcastListItem cbli = (CellBroadcastListItem) v;
-            showDialogAndMarkRead(cbli.getMessage());
+            CellBroadcastMessage cbm = mAdapter.getMessage(position);
+            if (cbm != null) {
+                showDialogAndMarkRead(cbm);
+            }
         }
 
         @Override
         public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-            return new CursorLoader(getActivity(), CellBroadcastContentProvider.CONTENT_URI,
-                    Telephony.CellBroadcasts.QUERY_COLUMNS, null, null,
-                    Telephony.CellBroadcasts.DELIVERY_TIME + " DESC");
+            return new CellBroadcastHistoryLoader(getActivity(),
+                    args != null ? args.getString(ARG_KEYWORDS) : null);
         }
 
         @Override
         public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-            // Swap the new cursor in.  (The framework will take care of closing the
-            // old cursor once we return.)
+            // Swap the new cursor in.  (The loader will take care of closing the
+            // pages of the old cursor that are no longer used.)
             mAdapter.swapCursor(data);
             getActivity().invalidateOptionsMenu();
         }
@@ -162,6 +188,67 @@ public class CellBroadcastListActivity extends Activity {
             mAdapter.swapCursor(null);
         }
 
+        private final SearchView.OnQueryTextListener mOnQueryTextListener =
+                new SearchView.OnQueryTextListener() {
+                    @Override
+                    public boolean onQueryTextSubmit(String query) {
+                        search(query);
+                        return false;
+                    }
+
+                    @Override
+                    public boolean onQueryTextChange(String newText) {
+                        search(newText);
+                        return true;
+                    }
+                };
+
+        /**
+         * Show the broadcasts matching the keywords, or all broadcasts if there are none.
+         */
+        private void search(String keywords) {
+            keywords = (keywords != null) ? keywords.trim() : null;
+            if (TextUtils.isEmpty(keywords)) {
+                keywords = null;
+            }
+            if (TextUtils.equals(keywords, mKeywords)) {
+                return;
+            }
+            mKeywords = keywords;
+
+            TextView emptyView = (TextView) getListView().getEmptyView();
+            if (emptyView != null) {
+                emptyView.setText(keywords != null ? R.string.no_search_results
+                        : R.string.no_cell_broadcasts);
+            }
+
+            Bundle args = null;
+            if (keywords != null) {
+                args = new Bundle();
+                args.putString(ARG_KEYWORDS, keywords);
+            }
+            getLoaderManager().restartLoader(0, args, this);
+        }
+
+        private final AbsListView.OnScrollListener mOnScrollListener =
+                new AbsListView.OnScrollListener() {
+                    @Override
+                    public void onScrollStateChanged(AbsListView view, int scrollState) {
+                    }
+
+                    @Override
+                    public void onScroll(AbsListView view, int firstVisibleItem,
+                            int visibleItemCount, int totalItemCount) {
+                        if (totalItemCount > 0 && firstVisibleItem + visibleItemCount
+                                >= totalItemCount - PAGE_PREFETCH_ROWS) {
+                            Loader<Cursor> loader = getLoaderManager().getLoader(0);
+                            if (loader != null) {
+                                ((CellBroadcastHistoryLoader) loader).loadNextPage();
+                            }
+                        }
+                    }
+                };
+
         private void showDialogAndMarkRead(CellBroadcastMessage cbm) {
             // show emergency alerts with the warning icon, but don't play alert tone
             Intent i = new Intent(getActivity(), CellBroadcastAlertDialog.class);
@@ -194,16 +281,18 @@ public class CellBroadcastListActivity extends Activity {
 
         @Override
         public boolean onContextItemSelected(MenuItem item) {
-            Cursor cursor = mAdapter.getCursor();
-            if (cursor != null && cursor.getPosition() >= 0) {
+            AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
+            if (info != null && info.position >= 0) {
                 switch (item.getItemId()) {
                     case MENU_DELETE:
-                        confirmDeleteThread(cursor.getLong(cursor.getColumnIndexOrThrow(
-                                Telephony.CellBroadcasts._ID)));
+                        confirmDeleteThread(info.id);
                         break;
 
                     case MENU_VIEW_DETAILS:
-                        showBroadcastDetails(CellBroadcastMessage.createFromCursor(cursor));
+                        CellBroadcastMessage cbm = mAdapter.getMessage(info.position);
+                        if (cbm != null) {
+                            showBroadcastDetails(cbm);
+                        }
                         break;
 
                     default:
@@ -17,23 +17,63 @@
 package com.android.cellbroadcastreceiver;
 
 import android.content.Context;
+import android.content.res.Resources;
+import android.database.CharArrayBuffer;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
-import android.telephony.CellBroadcastMessage;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
 import android.text.style.StyleSpan;
 import android.util.AttributeSet;
+import android.util.LruCache;
 import android.view.accessibility.AccessibilityEvent;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import java.util.Locale;
+import java.util.TimeZone;
+
 /**
- * This class manages the list item view for a single alert.
+ * This class manages the list item view for a single alert. The message body is copied by
+ * {@link CellBroadcastCursorAdapter} into a buffer owned by the view, which is reused when
+ * the view is bound to another row.
+ *
+ * <p>Binding a row doesn't load resources or format dates again: each view keeps its read
+ * and unread backgrounds, created from drawable state shared by all views, and formatted
+ * delivery times are cached by minute for all views.
  */
 public class CellBroadcastListItem extends RelativeLayout {
 
-    private CellBroadcastMessage mCbMessage;
+    private static final int DATE_FLAGS = DateUtils.FORMAT_NO_NOON_MIDNIGHT
+            | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_ALL
+            | DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_CAP_AMPM;
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    /** Formatted delivery times by minute since the epoch, in local time. Main thread only. */
+    private static final LruCache<Long, String> sDateStrings = new LruCache<Long, String>(512);
+
+    /** Locale, time zone and 24-hour setting the cached delivery times were formatted for. */
+    private static String sDateFormatState;
+
+    /** Drawable state for the read and unread backgrounds, shared by all list items. */
+    private static Drawable.ConstantState sReadBackgroundState;
+    private static Drawable.ConstantState sUnreadBackgroundState;
+
+    /** Bold style for unread messages. Style spans have no state, so one is shared. */
+    private static final StyleSpan sBoldSpan = new StyleSpan(Typeface.BOLD);
+
+    private final CharArrayBuffer mMessageBody = new CharArrayBuffer(128);
+    private final SpannableStringBuilder mStyledBody = new SpannableStringBuilder();
+    private final CharArrayBufferSequence mMessageBodySequence =
+            new CharArrayBufferSequence(mMessageBody);
+    private long mDeliveryTime;
+
+    private Drawable mReadBackground;
+    private Drawable mUnreadBackground;
+    private Boolean mBoundRead;
 
     private TextView mChannelView;
     private TextView mMessageView;
@@ -43,10 +83,6 @@ public class CellBroadcastListItem extends RelativeLayout {
         super(context, attrs);
     }
 
-    CellBroadcastMessage getMessage() {
-        return mCbMessage;
-    }
-
     @Override
     protected void onFinishInflate() {
         super.onFinishInflate();
@@ -54,45 +90,113 @@ public class CellBroadcastListItem extends RelativeLayout {
         mChannelView = (TextView) findViewById(R.id.channel);
         mDateView = (TextView) findViewById(R.id.date);
         mMessageView = (TextView) findViewById(R.id.message);
+
+        Resources res = getResources();
+        if (sReadBackgroundState == null) {
+            sReadBackgroundState =
+                    res.getDrawable(R.drawable.list_item_background_read).getConstantState();
+            sUnreadBackgroundState =
+                    res.getDrawable(R.drawable.list_item_background_unread).getConstantState();
+        }
+        mReadBackground = sReadBackgroundState.newDrawable(res);
+        mUnreadBackground = sUnreadBackgroundState.newDrawable(res);
+    }
+
+    /** Returns the buffer to copy the message body into before calling {@link #bind}. */
+    CharArrayBuffer getMessageBodyBuffer() {
+        return mMessageBody;
     }
 
     /**
-     * Only used for header binding.
-     * @param message the message contents to bind
+     * Bind the view to a broadcast whose body was copied into the message body buffer.
+     * @param titleResId the string resource ID of the alert title
+     * @param deliveryTime the delivery time of the broadcast
+     * @param isRead true if the broadcast has been read
      */
-    public void bind(CellBroadcastMessage message) {
-        mCbMessage = message;
+    void bind(int titleResId, long deliveryTime, boolean isRead) {
+        mDeliveryTime = deliveryTime;
 
-        Drawable background = message.isRead() ?
-                getResources().getDrawable(R.drawable.list_item_background_read) :
-                getResources().getDrawable(R.drawable.list_item_background_unread);
-
-        setBackground(background);
+        if (mBoundRead == null || mBoundRead != isRead) {
+            setBackground(isRead ? mReadBackground : mUnreadBackground);
+            mBoundRead = isRead;
+        }
 
-        mChannelView.setText(CellBroadcastResources.getDialogTitleResource(message));
-        mDateView.setText(message.getDateString(getContext()));
-        mMessageView.setText(formatMessage(message));
+        mChannelView.setText(titleResId);
+        mDateView.setText(getDateString(getContext(), deliveryTime));
+        if (isRead) {
+            mMessageView.setText(mMessageBody.data, 0, mMessageBody.sizeCopied);
+        } else {
+            // Unread messages are shown in bold
+            mStyledBody.clear();
+            mStyledBody.clearSpans();
+            mStyledBody.append(mMessageBodySequence);
+            mStyledBody.setSpan(sBoldSpan, 0, mStyledBody.length(),
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            mMessageView.setText(mStyledBody);
+        }
     }
 
-    private static CharSequence formatMessage(CellBroadcastMessage message) {
-        String body = message.getMessageBody();
-
-        SpannableStringBuilder buf = new SpannableStringBuilder(body);
+    /**
+     * Clear the cached delivery times if the locale, time zone or 24-hour setting changed.
+     * Called by {@link CellBroadcastCursorAdapter} when the list is loaded.
+     */
+    static void checkDateFormat(Context context) {
+        String state = Locale.getDefault().toString() + '/' + TimeZone.getDefault().getID()
+                + '/' + DateFormat.is24HourFormat(context);
+        if (!state.equals(sDateFormatState)) {
+            sDateStrings.evictAll();
+            sDateFormatState = state;
+        }
+    }
 
-        // Unread messages are shown in bold
-        if (!message.isRead()) {
-            buf.setSpan(new StyleSpan(Typeface.BOLD), 0, buf.length(),
-                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    /** Returns the formatted delivery time, from the cache if it was formatted before. */
+    private static String getDateString(Context context, long deliveryTime) {
+        long localTime = deliveryTime + TimeZone.getDefault().getOffset(deliveryTime);
+        Long minute = localTime / MINUTE_MILLIS;
+        String date = sDateStrings.get(minute);
+        if (date == null) {
+            date = DateUtils.formatDateTime(context, deliveryTime, DATE_FLAGS);
+            sDateStrings.put(minute, date);
         }
-        return buf;
+        return date;
     }
 
     @Override
     public boolean dispatchPopulateAccessibilityEvent(AccessibilityEvent event) {
         // Speak the date first, then channel name, then message body
-        event.getText().add(mCbMessage.getSpokenDateString(getContext()));
+        event.getText().add(DateUtils.formatDateTime(getContext(), mDeliveryTime,
+                DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE));
         mChannelView.dispatchPopulateAccessibilityEvent(event);
         mMessageView.dispatchPopulateAccessibilityEvent(event);
         return true;
     }
+
+    /** Read-only view of the characters copied into a buffer, to append without a copy. */
+    private static final class CharArrayBufferSequence implements CharSequence {
+        private final CharArrayBuffer mBuffer;
+
+        CharArrayBufferSequence(CharArrayBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int length() {
+            return mBuffer.sizeCopied;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return mBuffer.data[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(mBuffer.data, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mBuffer.data, 0, mBuffer.sizeCopied);
+        }
+    }
 }
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.telephony.SmsCbLocation;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cache of received message IDs, for duplicate message detection in
+ * {@link CellBroadcastAlertService}. Each message ID (service category, serial number and
+ * location) is packed into a single {@code long}, so checking a message does not allocate.
+ *
+ * <p>Message IDs are kept in a FIFO queue in the order they were received, together with the
+ * time they were received, and are indexed by an open-addressing hash table. A message ID is
+ * dropped when it is older than the expiry time, or when the maximum number of message IDs is
+ * reached and it is the oldest one. Since the queue is ordered by receive time, both cases only
+ * look at the head of the queue, so adding and expiring message IDs are O(1). The queue and the
+ * hash table grow and shrink with the number of message IDs in the active window, up to the
+ * maximum size.
+ *
+ * <p>A cache created with {@link #open} keeps its queue in a memory-mapped file instead of on
+ * the heap, so that the message IDs survive the process being killed or the device rebooting
+ * during an ongoing alert campaign. Writes go to the shared mapping and are flushed by the
+ * kernel, so recording a message ID does not cost a system call.
+ */
+final class CellBroadcastMessageIdCache {
+    private static final String TAG = "CellBroadcastMessageIdCache";
+
+    /** File header: magic, version, capacity, head and tail sequence numbers. */
+    private static final int FILE_MAGIC = 0x43424944;     // "CBID"
+    private static final int FILE_VERSION = 2;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_HEAD = 16;
+    private static final int OFFSET_TAIL = 24;
+    private static final int HEADER_SIZE = 32;
+
+    /** Each file entry holds the packed message ID and the time it was received. */
+    private static final int ENTRY_SIZE = 16;
+
+    /** Marker for an unused hash table slot. {@link #makeKey} never returns this value. */
+    private static final long EMPTY = 0L;
+
+    /** Smallest hash table and queue size; the arrays never shrink below this. */
+    private static final int MIN_ARRAY_SIZE = 64;
+
+    /** Maximum number of message IDs to save before removing the oldest message ID. */
+    private final int mCapacity;
+
+    /** Time in milliseconds after which a message ID expires, or 0 to never expire. */
+    private final long mExpiryMillis;
+
+    /**
+     * Sequence number of the oldest message ID in the queue. Sequence numbers increase by one
+     * for each message ID added; the queue holds the message IDs from mHead to mTail - 1.
+     */
+    private long mHead;
+
+    /** Sequence number of the next message ID to add. */
+    private long mTail;
+
+    /** Heap queue of message IDs and receive times (unused when backed by a file). */
+    private long[] mQueueKeys;
+    private long[] mQueueTimes;
+
+    /** Open-addressing (linear probing) hash table of the saved message IDs. */
+    private long[] mTable;
+
+    /** Mask to map a hash to a table index (table length is a power of two). */
+    private int mMask;
+
+    /** Memory-mapped backing file for the queue, or null for a volatile cache. */
+    private MappedByteBuffer mBackingStore;
+
+    /** Statistics for dumpsys. */
+    private long mHitCount;
+    private long mMissCount;
+    private long mExpiredCount;
+    private long mEvictedCount;
+
+    /**
+     * Create a new volatile cache.
+     * @param capacity the maximum number of message IDs to save
+     * @param expiryMillis time after which a message ID expires, or 0 to never expire
+     */
+    CellBroadcastMessageIdCache(int capacity, long expiryMillis) {
+        mCapacity = capacity;
+        mExpiryMillis = expiryMillis;
+        mQueueKeys = new long[MIN_ARRAY_SIZE];
+        mQueueTimes = new long[MIN_ARRAY_SIZE];
+        mTable = new long[MIN_ARRAY_SIZE];
+        mMask = MIN_ARRAY_SIZE - 1;
+    }
+
+    /**
+     * Create a cache backed by the specified file, loading any message IDs saved by a previous
+     * process. If the file can't be mapped, a volatile cache is returned instead.
+     * @param file the backing file (created if it doesn't exist)
+     * @param capacity the maximum number of message IDs to save
+     * @param expiryMillis time after which a message ID expires, or 0 to never expire
+     * @return the new cache
+     */
+    static CellBroadcastMessageIdCache open(File file, int capacity, long expiryMillis) {
+        CellBroadcastMessageIdCache cache = new CellBroadcastMessageIdCache(capacity,
+                expiryMillis);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+            buffer.order(ByteOrder.nativeOrder());
+            cache.load(buffer);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to map " + file + ", message IDs will not be saved", e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();    // the mapping stays valid after the file is closed
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Use a mapped file as the queue and rebuild the hash table from it. A file that was
+     * written with a different layout or capacity is reset.
+     */
+    private void load(MappedByteBuffer buffer) {
+        long head = buffer.getLong(OFFSET_HEAD);
+        long tail = buffer.getLong(OFFSET_TAIL);
+        if (buffer.getInt(OFFSET_MAGIC) != FILE_MAGIC
+                || buffer.getInt(OFFSET_VERSION) != FILE_VERSION
+                || buffer.getInt(OFFSET_CAPACITY) != mCapacity
+                || head < 0 || tail < head || tail - head > mCapacity) {
+            buffer.putInt(OFFSET_MAGIC, FILE_MAGIC);
+            buffer.putInt(OFFSET_VERSION, FILE_VERSION);
+            buffer.putInt(OFFSET_CAPACITY, mCapacity);
+            head = 0;
+            tail = 0;
+            buffer.putLong(OFFSET_HEAD, head);
+            buffer.putLong(OFFSET_TAIL, tail);
+        }
+        mBackingStore = buffer;
+        mQueueKeys = null;
+        mQueueTimes = null;
+        mHead = head;
+        mTail = tail;
+        resizeTable(tableSizeFor(size()));
+        for (long seq = head; seq < tail; seq++) {
+            long key = queueKey(seq);
+            if (key != EMPTY && indexOf(key) < 0) {
+                insertIntoTable(key);
+            }
+        }
+        Log.d(TAG, "loaded " + size() + " message IDs");
+    }
+
+    /**
+     * Pack a message ID into a key. The service category and serial number are 16-bit values
+     * and are stored as is; the location is reduced to a 32-bit hash.
+     * @param serviceCategory the message service category
+     * @param serialNumber the message serial number
+     * @param location the location the message was received in
+     * @return the packed message ID (never 0)
+     */
+    static long makeKey(int serviceCategory, int serialNumber, SmsCbLocation location) {
+        int locationHash = hashLocation(location);
+        if (locationHash == 0) {
+            locationHash = 1;   // reserve 0 for empty table slots
+        }
+        return ((long) (serviceCategory & 0xffff) << 48)
+                | ((long) (serialNumber & 0xffff) << 32)
+                | (locationHash & 0xffffffffL);
+    }
+
+    private static int hashLocation(SmsCbLocation location) {
+        if (location == null) {
+            return 0;
+        }
+        String plmn = location.getPlmn();
+        int h = (plmn != null) ? plmn.hashCode() : 0;
+        h = h * 0x01000193 ^ location.getLac();
+        h = h * 0x01000193 ^ location.getCid();
+        // final avalanche so that nearby LAC/CID values spread over all bits
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /** Returns a readable form of a packed message ID for logging. */
+    static String keyToString(long key) {
+        return "{mServiceCategory: " + ((int) (key >>> 48) & 0xffff)
+                + " serial number: " + ((int) (key >>> 32) & 0xffff)
+                + " location hash: " + Integer.toHexString((int) key) + '}';
+    }
+
+    /**
+     * Save a message ID, first dropping any expired message IDs, and removing the oldest
+     * message ID if the cache is full.
+     * @param key the packed message ID from {@link #makeKey}
+     * @param now the current time in milliseconds ({@link System#currentTimeMillis})
+     * @return true if the message ID is new; false if it has already been saved
+     */
+    boolean add(long key, long now) {
+        expire(now);
+        if (indexOf(key) >= 0) {
+            mHitCount++;
+            return false;
+        }
+        mMissCount++;
+        if (size() == mCapacity) {
+            // replace the oldest message ID with the new one; the file entry of the oldest
+            // message ID is reused, so drop it from the header first
+            removeHead();
+            writeHeader();
+            mEvictedCount++;
+        } else if (mBackingStore == null && size() == mQueueKeys.length) {
+            resizeQueue(mQueueKeys.length << 1);
+        }
+        long seq = mTail;
+        if (mBackingStore != null) {
+            // write the entry before the header, so a kill in between only loses this entry:
+            // the header never covers an entry being written
+            int offset = HEADER_SIZE + (int) (seq % mCapacity) * ENTRY_SIZE;
+            mBackingStore.putLong(offset, key);
+            mBackingStore.putLong(offset + 8, now);
+        } else {
+            int index = (int) seq & (mQueueKeys.length - 1);
+            mQueueKeys[index] = key;
+            mQueueTimes[index] = now;
+        }
+        mTail = seq + 1;
+        writeHeader();
+        if ((size() << 1) > mTable.length) {
+            resizeTable(mTable.length << 1);
+        }
+        insertIntoTable(key);
+        return true;
+    }
+
+    /**
+     * Drop all message IDs received more than the expiry time before {@code now}.
+     * @param now the current time in milliseconds ({@link System#currentTimeMillis})
+     */
+    void expire(long now) {
+        if (mExpiryMillis <= 0) {
+            return;
+        }
+        rebaseIfClockMovedBack(now);
+        boolean expired = false;
+        while (mHead < mTail && now - queueTime(mHead) >= mExpiryMillis) {
+            removeHead();
+            mExpiredCount++;
+            expired = true;
+        }
+        if (expired) {
+            writeHeader();
+            shrinkIfSparse();
+        }
+    }
+
+    /**
+     * The queue is ordered by receive time, so expiry stops at the first message ID that is
+     * too recent. If the wall clock was set back (by the user or a network time update), move
+     * every saved receive time back by the same amount, so the message IDs keep their age
+     * relative to the newest one, and the queue stays ordered for the new clock.
+     */
+    private void rebaseIfClockMovedBack(long now) {
+        if (mHead == mTail) {
+            return;
+        }
+        long newest = queueTime(mTail - 1);
+        if (now >= newest) {
+            return;
+        }
+        long delta = now - newest;
+        Log.w(TAG, "clock moved back " + (-delta) + " ms, rebasing " + size() + " message IDs");
+        for (long seq = mHead; seq < mTail; seq++) {
+            setQueueTime(seq, queueTime(seq) + delta);
+        }
+    }
+
+    /** Returns true if the message ID has been saved. */
+    boolean contains(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /** Returns the number of message IDs currently saved. */
+    int size() {
+        return (int) (mTail - mHead);
+    }
+
+    /** Dump statistics for dumpsys. */
+    void dump(PrintWriter pw) {
+        long lookups = mHitCount + mMissCount;
+        pw.println("  message IDs: " + size() + " of " + mCapacity
+                + (mBackingStore != null ? " (persistent)" : " (volatile)"));
+        pw.println("  expiry time: " + (mExpiryMillis > 0 ? mExpiryMillis + " ms" : "none"));
+        pw.println("  duplicates: " + mHitCount + " new: " + mMissCount
+                + (lookups > 0 ? " (" + (mHitCount * 100 / lookups) + "% duplicate)" : ""));
+        pw.println("  expired: " + mExpiredCount + " evicted (cache full): " + mEvictedCount);
+    }
+
+    private long queueKey(long seq) {
+        if (mBackingStore != null) {
+            return mBackingStore.getLong(HEADER_SIZE + (int) (seq % mCapacity) * ENTRY_SIZE);
+        }
+        return mQueueKeys[(int) seq & (mQueueKeys.length - 1)];
+    }
+
+    private long queueTime(long seq) {
+        if (mBackingStore != null) {
+            return mBackingStore.getLong(HEADER_SIZE + (int) (seq % mCapacity) * ENTRY_SIZE + 8);
+        }
+        return mQueueTimes[(int) seq & (mQueueKeys.length - 1)];
+    }
+
+    private void setQueueTime(long seq, long time) {
+        if (mBackingStore != null) {
+            mBackingStore.putLong(HEADER_SIZE + (int) (seq % mCapacity) * ENTRY_SIZE + 8, time);
+        } else {
+            mQueueTimes[(int) seq & (mQueueKeys.length - 1)] = time;
+        }
+    }
+
+    /** Remove the oldest message ID from the queue and the hash table. */
+    private void removeHead() {
+        removeFromTable(queueKey(mHead));
+        mHead++;
+    }
+
+    private void writeHeader() {
+        if (mBackingStore != null) {
+            mBackingStore.putLong(OFFSET_TAIL, mTail);
+            mBackingStore.putLong(OFFSET_HEAD, mHead);
+        }
+    }
+
+    /** Release memory after a burst of message IDs has expired. */
+    private void shrinkIfSparse() {
+        int size = size();
+        if (mTable.length > MIN_ARRAY_SIZE && (size << 3) < mTable.length) {
+            resizeTable(tableSizeFor(size));
+        }
+        if (mBackingStore == null && mQueueKeys.length > MIN_ARRAY_SIZE
+                && (size << 2) < mQueueKeys.length) {
+            resizeQueue(Math.max(MIN_ARRAY_SIZE, Integer.highestOneBit(size) << 1));
+        }
+    }
+
+    /** Returns a power of two table size with a load factor of at most 0.5 for size entries. */
+    private static int tableSizeFor(int size) {
+        return Math.max(MIN_ARRAY_SIZE, Integer.highestOneBit(Math.max(size, 1)) << 2);
+    }
+
+    /** Copy the heap queue into arrays of a new power of two length. */
+    private void resizeQueue(int length) {
+        long[] keys = new long[length];
+        long[] times = new long[length];
+        int oldMask = mQueueKeys.length - 1;
+        int newMask = length - 1;
+        for (long seq = mHead; seq < mTail; seq++) {
+            keys[(int) seq & newMask] = mQueueKeys[(int) seq & oldMask];
+            times[(int) seq & newMask] = mQueueTimes[(int) seq & oldMask];
+        }
+        mQueueKeys = keys;
+        mQueueTimes = times;
+    }
+
+    /** Rebuild the hash table with a new power of two length. */
+    private void resizeTable(int length) {
+        long[] oldTable = mTable;
+        mTable = new long[length];
+        mMask = length - 1;
+        for (long key : oldTable) {
+            if (key != EMPTY) {
+                insertIntoTable(key);
+            }
+        }
+    }
+
+    /** Returns the home slot of a key in the hash table; package-private for tests. */
+    int slot(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+
+    private int indexOf(long key) {
+        int i = slot(key);
+        long k;
+        while ((k = mTable[i]) != EMPTY) {
+            if (k == key) {
+                return i;
+            }
+            i = (i + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private void insertIntoTable(long key) {
+        int i = slot(key);
+        while (mTable[i] != EMPTY) {
+            i = (i + 1) & mMask;
+        }
+        mTable[i] = key;
+    }
+
+    /**
+     * Remove a key from the hash table, shifting later entries of the same probe sequence
+     * back into the hole so that no tombstones are needed.
+     */
+    private void removeFromTable(long key) {
+        int hole = indexOf(key);
+        if (hole < 0) {
+            return;
+        }
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mMask;
+            long k = mTable[i];
+            if (k == EMPTY) {
+                break;
+            }
+            int home = slot(k);
+            // move the entry into the hole unless its home slot lies between hole and i
+            if (((i - home) & mMask) >= ((i - hole) & mMask)) {
+                mTable[hole] = k;
+                hole = i;
+            }
+        }
+        mTable[hole] = EMPTY;
+    }
+}
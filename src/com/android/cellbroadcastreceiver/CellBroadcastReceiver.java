@@ -32,19 +32,43 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.cdma.CdmaSmsCbProgramData;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 import com.android.internal.telephony.ITelephony;
 import com.android.internal.telephony.cdma.sms.SmsEnvelope;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.TelephonyIntents;
 
+import java.io.PrintWriter;
+
 public class CellBroadcastReceiver extends BroadcastReceiver {
     private static final String TAG = "CellBroadcastReceiver";
     static final boolean DBG = true;    // STOPSHIP: change to false before ship
-    private int mServiceState = -1;
+
+    /**
+     * Last service state of each phone ID. This is static because a new receiver instance is
+     * created for each broadcast. Only used on the main thread.
+     */
+    private static final SparseIntArray sServiceStates = new SparseIntArray();
     private static final String GET_LATEST_CB_AREA_INFO_ACTION =
             "android.cellbroadcastreceiver.GET_LATEST_CB_AREA_INFO";
 
+    /** Value for a subscription whose phone type is not in the cache. */
+    private static final int PHONE_TYPE_UNKNOWN = -1;
+
+    /**
+     * Active phone type of each subscription. Invalidated when the voice radio technology of
+     * the subscription changes and cleared on subscription changes, so the phone service is
+     * only queried on a cache miss. Guarded by itself, as are the hit and miss counts and the
+     * radio technologies.
+     */
+    private static final SparseIntArray sPhoneTypes = new SparseIntArray();
+    private static int sPhoneTypeCacheHits;
+    private static int sPhoneTypeCacheMisses;
+
+    /** Voice radio technology of each subscription, from the last service state change. */
+    private static final SparseIntArray sVoiceRadioTechs = new SparseIntArray();
+
     private static int mPhoneId = SubscriptionManager.getPhoneId(
             SubscriptionManager.getDefaultSmsSubId());
 
@@ -72,15 +96,29 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
         if (TelephonyIntents.ACTION_SERVICE_STATE_CHANGED.equals(action)) {
             if (DBG) log("Intent ACTION_SERVICE_STATE_CHANGED");
             ServiceState serviceState = ServiceState.newFromBundle(intent.getExtras());
+            // the phone type may have changed with the radio technology, e.g. on a global
+            // mode phone
+            int subId = intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            if (SubscriptionManager.isValidSubscriptionId(subId)
+                    && voiceRadioTechChanged(subId, serviceState.getRilVoiceRadioTechnology())) {
+                CellBroadcastConfigService.invalidateEmergencyChannelRanges(subId);
+            }
+            int phoneId = intent.getIntExtra(PhoneConstants.PHONE_KEY, mPhoneId);
             int newState = serviceState.getState();
-            if (newState != mServiceState) {
+            int oldState = sServiceStates.get(phoneId, -1);
+            if (newState != oldState) {
                 Log.d(TAG, "Service state changed! " + newState + " Full: " + serviceState +
-                        " Current state=" + mServiceState);
-                mServiceState = newState;
+                        " Current state=" + oldState + " phoneId=" + phoneId);
+                sServiceStates.put(phoneId, newState);
+                if (newState == ServiceState.STATE_POWER_OFF) {
+                    // the radio may forget the enabled channels while it is off
+                    CellBroadcastChannelConfig.clearApplied(context);
+                }
                 if (((newState == ServiceState.STATE_IN_SERVICE) ||
                         (newState == ServiceState.STATE_EMERGENCY_ONLY)) &&
                         (UserHandle.myUserId() == UserHandle.USER_OWNER)) {
-                    startConfigService(context.getApplicationContext());
+                    startConfigServiceDebounced(context.getApplicationContext(), phoneId);
                 }
             }
         } else if (Telephony.Sms.Intents.SMS_EMERGENCY_CB_RECEIVED_ACTION.equals(action) ||
@@ -90,6 +128,7 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
             // means someone has tried to spoof the message by delivering it outside the normal
             // permission-checked route, so we just ignore it.
             if (privileged) {
+                CellBroadcastAlertTrace.markReceived(intent);
                 intent.setClass(context, CellBroadcastAlertService.class);
                 context.startService(intent);
             } else {
@@ -130,6 +169,11 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
                 Log.e(TAG, "caller missing READ_PHONE_STATE permission, returning");
             }
         } else if (action.equals(TelephonyIntents.ACTION_SUBINFO_RECORD_UPDATED)) {
+            synchronized (sPhoneTypes) {
+                sPhoneTypes.clear();
+                sVoiceRadioTechs.clear();
+            }
+            CellBroadcastConfigService.invalidateEmergencyChannelRanges();
             // FIXME on latest AOSP refresh, google removed PhoneStateListener and
             // listening for SERVICE STATE intent. Same way for MSIM also we need
             // to listen for intent.
@@ -221,21 +265,86 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
         context.startService(serviceIntent);
     }
 
+    /**
+     * Tell {@link CellBroadcastConfigService} to enable the CB channels for a phone after a
+     * service state change, once the service state has stopped changing.
+     * @param context the broadcast receiver context
+     * @param phoneId the phone to configure
+     */
+    static void startConfigServiceDebounced(Context context, int phoneId) {
+        Intent serviceIntent = new Intent(CellBroadcastConfigService.ACTION_ENABLE_CHANNELS, null,
+                context, CellBroadcastConfigService.class);
+        serviceIntent.putExtra(PhoneConstants.SLOT_KEY, phoneId);
+        serviceIntent.putExtra(CellBroadcastConfigService.EXTRA_DEBOUNCE, true);
+        context.startService(serviceIntent);
+    }
+
     /**
      * @return true if the phone is a CDMA phone type
      */
     static boolean phoneIsCdma(int subId) {
-        boolean isCdma = false;
+        synchronized (sPhoneTypes) {
+            int phoneType = sPhoneTypes.get(subId, PHONE_TYPE_UNKNOWN);
+            if (phoneType != PHONE_TYPE_UNKNOWN) {
+                sPhoneTypeCacheHits++;
+                return phoneType == TelephonyManager.PHONE_TYPE_CDMA;
+            }
+            sPhoneTypeCacheMisses++;
+        }
+        int phoneType = getActivePhoneType(subId);
+        if (phoneType != PHONE_TYPE_UNKNOWN) {
+            synchronized (sPhoneTypes) {
+                sPhoneTypes.put(subId, phoneType);
+            }
+        }
+        return phoneType == TelephonyManager.PHONE_TYPE_CDMA;
+    }
+
+    /**
+     * Record the voice radio technology of a subscription from a service state change, and
+     * drop the cached phone type if the radio technology changed, since the phone type only
+     * changes with it. The phone type is queried again on the next lookup.
+     * @param subId the subscription ID
+     * @param radioTech the voice radio technology from the service state
+     * @return true if the radio technology changed
+     */
+    private static boolean voiceRadioTechChanged(int subId, int radioTech) {
+        synchronized (sPhoneTypes) {
+            int index = sVoiceRadioTechs.indexOfKey(subId);
+            if (index >= 0 && sVoiceRadioTechs.valueAt(index) == radioTech) {
+                return false;
+            }
+            if (DBG) log("voice radio technology for subId " + subId + " is " + radioTech);
+            sVoiceRadioTechs.put(subId, radioTech);
+            sPhoneTypes.delete(subId);
+            return true;
+        }
+    }
+
+    /**
+     * @return the active phone type of the subscription, or PHONE_TYPE_UNKNOWN on error
+     */
+    private static int getActivePhoneType(int subId) {
         try {
             ITelephony phone = ITelephony.Stub.asInterface(ServiceManager.checkService("phone"));
             if (phone != null) {
-                isCdma = (phone.getActivePhoneTypeForSubscriber(subId) ==
-                        TelephonyManager.PHONE_TYPE_CDMA);
+                return phone.getActivePhoneTypeForSubscriber(subId);
             }
         } catch (RemoteException e) {
             Log.w(TAG, "phone.getActivePhoneType() failed", e);
         }
-        return isCdma;
+        return PHONE_TYPE_UNKNOWN;
+    }
+
+    /** Dump the phone type cache for dumpsys. */
+    static void dumpPhoneTypeCache(PrintWriter pw) {
+        synchronized (sPhoneTypes) {
+            int lookups = sPhoneTypeCacheHits + sPhoneTypeCacheMisses;
+            pw.println(" phone type cache: size=" + sPhoneTypes.size()
+                    + " hits=" + sPhoneTypeCacheHits + " misses=" + sPhoneTypeCacheMisses
+                    + " hitRate=" + (lookups > 0 ? sPhoneTypeCacheHits * 100 / lookups : 0)
+                    + '%');
+        }
     }
 
     private static void log(String msg) {
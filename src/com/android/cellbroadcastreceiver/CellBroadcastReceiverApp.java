@@ -22,7 +22,6 @@ import android.telephony.SubscriptionManager;
 import android.util.Log;
 import android.preference.PreferenceManager;
 
-import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.HashMap;
 import java.util.Map;
@@ -39,25 +38,51 @@ public class CellBroadcastReceiverApp extends Application {
         super.onCreate();
         // TODO: fix strict mode violation from the following method call during app creation
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
+        CellBroadcastUserFilter.init(this);
+        // decode the attention signal now so an alert can start it without delay
+        CellBroadcastAlertTone.warmUp(this);
+        // save any emergency alerts that were shown but not saved before the process died
+        CellBroadcastInsertQueue.replayJournalIfNeeded(this);
+        // delete old broadcasts once a day
+        CellBroadcastRetentionService.schedule(this);
     }
 
-    /** List of unread non-emergency alerts to show when user selects the notification. */
-    private static final ArrayList<CellBroadcastMessage> sNewMessageList =
-            new ArrayList<CellBroadcastMessage>(4);
+    /** Number of unread non-emergency alerts in the notification. Guarded by class lock. */
+    private static int sUnreadCount;
+
+    /** Delivery time of the oldest unread non-emergency alert in the notification. */
+    private static long sFirstUnreadTime;
 
     /** Latest area info cell broadcast received. */
     private static Map<Integer, CellBroadcastMessage> sLatestAreaInfo =
                                 new HashMap<Integer, CellBroadcastMessage>();
 
-    /** Adds a new unread non-emergency message and returns the current list. */
-    static ArrayList<CellBroadcastMessage> addNewMessageToList(CellBroadcastMessage message) {
-        sNewMessageList.add(message);
-        return sNewMessageList;
+    /**
+     * Counts a new unread non-emergency message. The messages themselves are loaded from the
+     * database when the user selects the notification.
+     * @return the number of unread non-emergency messages, including this one
+     */
+    static synchronized int addNewMessage(CellBroadcastMessage message) {
+        if (sUnreadCount++ == 0) {
+            sFirstUnreadTime = message.getDeliveryTime();
+        }
+        return sUnreadCount;
+    }
+
+    /** Returns the number of unread non-emergency messages. */
+    static synchronized int getUnreadCount() {
+        return sUnreadCount;
+    }
+
+    /** Returns the delivery time of the oldest unread non-emergency message. */
+    static synchronized long getFirstUnreadTime() {
+        return sFirstUnreadTime;
     }
 
-    /** Clears the list of unread non-emergency messages. */
-    static void clearNewMessageList() {
-        sNewMessageList.clear();
+    /** Clears the unread non-emergency messages. */
+    static synchronized void clearNewMessages() {
+        sUnreadCount = 0;
+        sFirstUnreadTime = 0;
     }
 
     /** Saves the latest area info broadcast received. */
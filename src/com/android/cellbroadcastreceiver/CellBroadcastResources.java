@@ -30,6 +30,9 @@ import android.text.style.StyleSpan;
  */
 public class CellBroadcastResources {
 
+    /** Value for an ETWS warning type or CMAS message class that is not present. */
+    static final int TYPE_NOT_PRESENT = Integer.MIN_VALUE;
+
     private CellBroadcastResources() {
     }
 
@@ -237,10 +240,26 @@ public class CellBroadcastResources {
     }
 
     public static int getDialogTitleResource(CellBroadcastMessage cbm) {
-        // ETWS warning types
         SmsCbEtwsInfo etwsInfo = cbm.getEtwsWarningInfo();
-        if (etwsInfo != null) {
-            switch (etwsInfo.getWarningType()) {
+        SmsCbCmasInfo cmasInfo = cbm.getCmasWarningInfo();
+        return getDialogTitleResource(
+                (etwsInfo != null) ? etwsInfo.getWarningType() : TYPE_NOT_PRESENT,
+                (cmasInfo != null) ? cmasInfo.getMessageClass() : TYPE_NOT_PRESENT,
+                CellBroadcastConfigService.isEmergencyAlertMessage(cbm));
+    }
+
+    /**
+     * Returns the title of an alert from the columns of a stored broadcast.
+     * @param etwsWarningType the ETWS warning type, or {@link #TYPE_NOT_PRESENT}
+     * @param cmasMessageClass the CMAS message class, or {@link #TYPE_NOT_PRESENT}
+     * @param emergency true if the broadcast is an emergency alert
+     * @return the string resource ID of the title
+     */
+    static int getDialogTitleResource(int etwsWarningType, int cmasMessageClass,
+            boolean emergency) {
+        // ETWS warning types
+        if (etwsWarningType != TYPE_NOT_PRESENT) {
+            switch (etwsWarningType) {
                 case SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE:
                     return R.string.etws_earthquake_warning;
 
@@ -260,9 +279,8 @@ public class CellBroadcastResources {
         }
 
         // CMAS warning types
-        SmsCbCmasInfo cmasInfo = cbm.getCmasWarningInfo();
-        if (cmasInfo != null) {
-            switch (cmasInfo.getMessageClass()) {
+        if (cmasMessageClass != TYPE_NOT_PRESENT) {
+            switch (cmasMessageClass) {
                 case SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT:
                     return R.string.cmas_presidential_level_alert;
 
@@ -289,7 +307,7 @@ public class CellBroadcastResources {
             }
         }
 
-        if (CellBroadcastConfigService.isEmergencyAlertMessage(cbm)) {
+        if (emergency) {
             return R.string.pws_other_message_identifiers;
         } else {
             return R.string.cb_other_message_identifiers;
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Deletes old broadcasts from the database once a day, so that the history doesn't grow
+ * without limit, and returns the freed pages to the file system.
+ *
+ * <p>Broadcasts are deleted by age and count: per service category for the policies in
+ * {@code retention_category_policies}, then by {@code retention_max_age_days} for the other
+ * categories, and finally by {@code retention_max_rows} for the whole history. Rows are
+ * deleted in chunks of {@link #CHUNK_SIZE}, each in its own transaction, so that new
+ * broadcasts can be written between chunks.
+ *
+ * <p>The metrics of the last run are kept in shared preferences and reported by
+ * {@link #dump}.
+ */
+public class CellBroadcastRetentionService extends IntentService {
+    private static final String TAG = "CellBroadcastRetentionService";
+
+    static final String ACTION_PURGE = "ACTION_PURGE_OLD_BROADCASTS";
+
+    /** Maximum number of rows deleted in one transaction. */
+    static final int CHUNK_SIZE = 200;
+
+    /** Pause between chunks and vacuum steps, to let writers waiting for the database in. */
+    static final long CHUNK_PAUSE_MSEC = 20;
+
+    private static final long DAY_MSEC = AlarmManager.INTERVAL_DAY;
+
+    /** Shared preferences file for the metrics of the last run. */
+    private static final String PREFS_NAME = "retention";
+    private static final String KEY_LAST_RUN_TIME = "last_run_time";
+    private static final String KEY_ROWS_PURGED = "rows_purged";
+    private static final String KEY_BYTES_RECLAIMED = "bytes_reclaimed";
+    private static final String KEY_LOCK_MILLIS = "lock_millis";
+    private static final String KEY_MAX_LOCK_MILLIS = "max_lock_millis";
+    private static final String KEY_TOTAL_ROWS_PURGED = "total_rows_purged";
+
+    /** Retention for a range of service categories. */
+    static final class CategoryPolicy {
+        final int mFirstCategory;
+        final int mLastCategory;
+        final int mMaxAgeDays;
+        final int mMaxRows;
+
+        CategoryPolicy(int firstCategory, int lastCategory, int maxAgeDays, int maxRows) {
+            mFirstCategory = firstCategory;
+            mLastCategory = lastCategory;
+            mMaxAgeDays = maxAgeDays;
+            mMaxRows = maxRows;
+        }
+
+        String getSelection() {
+            return Telephony.CellBroadcasts.SERVICE_CATEGORY + " BETWEEN " + mFirstCategory
+                    + " AND " + mLastCategory;
+        }
+
+        /**
+         * Parse a policy in the format "first[-last]:maxAgeDays:maxRows".
+         * @return the policy, or null if the format is invalid
+         */
+        static CategoryPolicy parse(String policy) {
+            String[] fields = policy.trim().split(":");
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                int dash = fields[0].indexOf('-');
+                int first = Integer.parseInt(dash < 0 ? fields[0] : fields[0].substring(0, dash));
+                int last = (dash < 0) ? first : Integer.parseInt(fields[0].substring(dash + 1));
+                int maxAgeDays = Integer.parseInt(fields[1]);
+                int maxRows = Integer.parseInt(fields[2]);
+                if (first > last || maxAgeDays < 0 || maxRows < 0) {
+                    return null;
+                }
+                return new CategoryPolicy(first, last, maxAgeDays, maxRows);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /** Metrics of a run, updated by {@link CellBroadcastContentProvider}. */
+    static final class Metrics {
+        int mRowsPurged;
+        long mBytesReclaimed;
+        /** Total time the database was locked for writing. */
+        long mLockMillis;
+        /** Longest time the database was locked by one transaction. */
+        long mMaxLockMillis;
+
+        void addLockTime(long millis) {
+            mLockMillis += millis;
+            if (millis > mMaxLockMillis) {
+                mMaxLockMillis = millis;
+            }
+        }
+    }
+
+    public CellBroadcastRetentionService() {
+        super(TAG);          // use class name for worker thread name
+    }
+
+    /**
+     * Schedule the daily run, if not already scheduled. The alarm doesn't wake the device up,
+     * and is scheduled again when the process starts after a reboot.
+     */
+    static void schedule(Context context) {
+        Intent intent = new Intent(ACTION_PURGE, null, context,
+                CellBroadcastRetentionService.class);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;     // already scheduled
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) {
+            Log.e(TAG, "can't get Alarm Service");
+            return;
+        }
+        PendingIntent pendingIntent = PendingIntent.getService(context, 0, intent, 0);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR, DAY_MSEC,
+                pendingIntent);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null || !ACTION_PURGE.equals(intent.getAction())) {
+            return;
+        }
+        ContentProviderClient cpc = getContentResolver().acquireContentProviderClient(
+                CellBroadcastContentProvider.CB_AUTHORITY);
+        try {
+            CellBroadcastContentProvider provider = (cpc != null) ?
+                    (CellBroadcastContentProvider) cpc.getLocalContentProvider() : null;
+            if (provider == null) {
+                Log.e(TAG, "getLocalContentProvider() returned null");
+                return;
+            }
+            Metrics metrics = new Metrics();
+            purge(provider, metrics);
+            provider.incrementalVacuum(metrics, isDeviceIdle());
+            provider.checkpoint();
+            if (metrics.mRowsPurged != 0) {
+                getContentResolver().notifyChange(CellBroadcastContentProvider.CONTENT_URI,
+                        null, false);
+            }
+            saveMetrics(metrics);
+        } finally {
+            if (cpc != null) {
+                cpc.release();
+            }
+        }
+    }
+
+    private void purge(CellBroadcastContentProvider provider, Metrics metrics) {
+        Resources res = getResources();
+        long now = System.currentTimeMillis();
+        ArrayList<CategoryPolicy> policies = loadPolicies(res);
+
+        StringBuilder otherCategories = new StringBuilder();
+        for (CategoryPolicy policy : policies) {
+            String selection = policy.getSelection();
+            if (policy.mMaxAgeDays > 0) {
+                provider.purgeBroadcasts(selection + " AND "
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + '<'
+                        + (now - policy.mMaxAgeDays * DAY_MSEC), 0, metrics);
+            }
+            if (policy.mMaxRows > 0) {
+                provider.purgeBroadcasts(selection, policy.mMaxRows, metrics);
+            }
+            otherCategories.append(" AND NOT (").append(selection).append(')');
+        }
+
+        int maxAgeDays = res.getInteger(R.integer.retention_max_age_days);
+        if (maxAgeDays > 0) {
+            provider.purgeBroadcasts(Telephony.CellBroadcasts.DELIVERY_TIME + '<'
+                    + (now - maxAgeDays * DAY_MSEC) + otherCategories, 0, metrics);
+        }
+
+        int maxRows = res.getInteger(R.integer.retention_max_rows);
+        if (maxRows > 0) {
+            provider.purgeBroadcasts(null, maxRows, metrics);
+        }
+    }
+
+    /**
+     * Returns true if the device is idle enough to rebuild the database: the screen is off
+     * and the device is charging.
+     */
+    private boolean isDeviceIdle() {
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null || powerManager.isInteractive()) {
+            return false;
+        }
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static ArrayList<CategoryPolicy> loadPolicies(Resources res) {
+        ArrayList<CategoryPolicy> policies = new ArrayList<CategoryPolicy>();
+        for (String item : res.getStringArray(R.array.retention_category_policies)) {
+            CategoryPolicy policy = CategoryPolicy.parse(item);
+            if (policy != null) {
+                policies.add(policy);
+            } else {
+                Log.e(TAG, "invalid retention policy: " + item);
+            }
+        }
+        return policies;
+    }
+
+    private void saveMetrics(Metrics metrics) {
+        Log.d(TAG, "purged " + metrics.mRowsPurged + " broadcasts, reclaimed "
+                + metrics.mBytesReclaimed + " bytes, database locked " + metrics.mLockMillis
+                + "ms (max " + metrics.mMaxLockMillis + "ms)");
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit()
+                .putLong(KEY_LAST_RUN_TIME, System.currentTimeMillis())
+                .putInt(KEY_ROWS_PURGED, metrics.mRowsPurged)
+                .putLong(KEY_BYTES_RECLAIMED, metrics.mBytesReclaimed)
+                .putLong(KEY_LOCK_MILLIS, metrics.mLockMillis)
+                .putLong(KEY_MAX_LOCK_MILLIS, metrics.mMaxLockMillis)
+                .putLong(KEY_TOTAL_ROWS_PURGED,
+                        prefs.getLong(KEY_TOTAL_ROWS_PURGED, 0) + metrics.mRowsPurged)
+                .apply();
+    }
+
+    /** Dump the metrics of the last run for dumpsys. */
+    static void dump(Context context, PrintWriter pw) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long lastRunTime = prefs.getLong(KEY_LAST_RUN_TIME, 0);
+        if (lastRunTime == 0) {
+            pw.println(" retention: never run");
+            return;
+        }
+        pw.println(" retention: last run=" + lastRunTime
+                + " purged=" + prefs.getInt(KEY_ROWS_PURGED, 0)
+                + " reclaimed=" + prefs.getLong(KEY_BYTES_RECLAIMED, 0) + " bytes"
+                + " lock=" + prefs.getLong(KEY_LOCK_MILLIS, 0) + "ms"
+                + " maxLock=" + prefs.getLong(KEY_MAX_LOCK_MILLIS, 0) + "ms"
+                + " totalPurged=" + prefs.getLong(KEY_TOTAL_ROWS_PURGED, 0));
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of spoken alert messages, synthesized by the TTS engine to audio
+ * files in the app's files directory. Operators often send the same alert text many times,
+ * so {@link CellBroadcastAlertAudio} synthesizes the message while the attention signal plays
+ * and saves the result here, and later deliveries of the same text in the same language play
+ * the saved file without waiting for the engine.
+ *
+ * <p>The cache is bounded by {@link #MAX_ENTRIES} files and {@link #MAX_BYTES} in total.
+ * The access order survives restarts through the last modified time of the files.
+ *
+ * <p>Hashing the text, updating the access time, renaming and deleting files all run on a
+ * background thread, so that the alert audio never waits for the file system; results are
+ * passed back on the main thread.
+ */
+final class CellBroadcastSpeechCache {
+    private static final String TAG = "CellBroadcastSpeechCache";
+
+    /** Directory in the app's files directory holding the cached files. */
+    private static final String CACHE_DIR = "speech_cache";
+
+    private static final String FILE_SUFFIX = ".wav";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAX_ENTRIES = 32;
+    private static final long MAX_BYTES = 8 * 1024 * 1024;
+
+    private static CellBroadcastSpeechCache sInstance;
+
+    /** Callback on the main thread with the result of {@link #lookup}. */
+    interface LookupCallback {
+        /**
+         * @param key the cache key of the message
+         * @param cachedFile the cached speech, or null if not cached
+         * @param tempFile the file to synthesize into before calling {@link #put}, or null if
+         *     the cache directory can't be created
+         */
+        void onLookupDone(String key, File cachedFile, File tempFile);
+    }
+
+    /** Callback on the main thread with the result of {@link #put}. */
+    interface PutCallback {
+        /** @param cachedFile the cached speech, or null if it couldn't be added */
+        void onPutDone(File cachedFile);
+    }
+
+    private final File mDir;
+
+    /** Handler for the file system work, and for the results on the main thread. */
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Size of each cached file by key, in access order. Loaded on first use. */
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private boolean mLoaded;
+    private long mTotalBytes;
+
+    // Hit ratio, for dumpsys.
+    private int mLookupCount;
+    private int mHitCount;
+
+    private CellBroadcastSpeechCache(File dir) {
+        mDir = dir;
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    static synchronized CellBroadcastSpeechCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CellBroadcastSpeechCache(new File(context.getFilesDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    /** Returns the cache if it was created, for dumpsys. */
+    static synchronized CellBroadcastSpeechCache peekInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Look up the synthesized speech for a message body spoken in a language in the
+     * background, and mark it as most recently used.
+     * @param body the message body
+     * @param language the language code, or null for the default language
+     * @param callback called on the main thread with the result
+     */
+    void lookup(final String body, final String language, final LookupCallback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final String key = makeKey(body, language);
+                final File cachedFile = get(key);
+                final File tempFile = (cachedFile == null) ? getTempFile(key) : null;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLookupDone(key, cachedFile, tempFile);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Add the speech synthesized into the temporary file to the cache in the background.
+     * @param callback called on the main thread with the result
+     */
+    void put(final String key, final File tempFile, final PutCallback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final File cachedFile = add(key, tempFile);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPutDone(cachedFile);
+                    }
+                });
+            }
+        });
+    }
+
+    /** Discard a temporary file for synthesis that didn't complete, in the background. */
+    void discard(final File tempFile) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                tempFile.delete();
+            }
+        });
+    }
+
+    /**
+     * Returns the cache key for a message body spoken in a language.
+     * @param body the message body
+     * @param language the language code, or null for the default language
+     */
+    private static String makeKey(String body, String language) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            if (language != null) {
+                digest.update(language.getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(body.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // SHA-1 is always available
+        }
+    }
+
+    /**
+     * Look up the synthesized speech for a key, and mark it as most recently used.
+     * @return the audio file, or null if not cached
+     */
+    private synchronized File get(String key) {
+        load();
+        mLookupCount++;
+        Long size = mEntries.get(key);
+        if (size == null) {
+            return null;
+        }
+        File file = new File(mDir, key + FILE_SUFFIX);
+        if (!file.exists()) {
+            mEntries.remove(key);
+            mTotalBytes -= size;
+            return null;
+        }
+        mHitCount++;
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Returns the file the TTS engine should synthesize into before calling {@link #put}.
+     * @return the temporary file, or null if the cache directory can't be created
+     */
+    private synchronized File getTempFile(String key) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "can't create " + mDir);
+            return null;
+        }
+        return new File(mDir, key + TEMP_SUFFIX);
+    }
+
+    /**
+     * Add the speech synthesized into the temporary file to the cache, removing the least
+     * recently used entries if the cache is full.
+     * @return the cached file, or null if it couldn't be added
+     */
+    private synchronized File add(String key, File tempFile) {
+        load();
+        File file = new File(mDir, key + FILE_SUFFIX);
+        long size = tempFile.length();
+        if (size == 0 || size > MAX_BYTES || !tempFile.renameTo(file)) {
+            Log.e(TAG, "can't cache synthesized speech of " + size + " bytes");
+            tempFile.delete();
+            return null;
+        }
+        Long oldSize = mEntries.put(key, size);
+        mTotalBytes += size - (oldSize != null ? oldSize : 0);
+        trim();
+        return file;
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(FILE_SUFFIX)) {
+                long size = file.length();
+                mEntries.put(name.substring(0, name.length() - FILE_SUFFIX.length()), size);
+                mTotalBytes += size;
+            } else {
+                // left by synthesis interrupted when the process died
+                file.delete();
+            }
+        }
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mTotalBytes > MAX_BYTES)
+                && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(mDir, eldest.getKey() + FILE_SUFFIX).delete();
+            mTotalBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" speech cache: entries=" + mEntries.size() + " bytes=" + mTotalBytes
+                + " lookups=" + mLookupCount + " hits=" + mHitCount + " hit ratio="
+                + (mLookupCount > 0 ? (100 * mHitCount / mLookupCount) : 0) + '%');
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.util.Log;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Locale;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Text-to-speech engine shared by all alerts. {@link CellBroadcastAlertService} binds the
+ * engine as soon as an emergency alert is received, so that it is usually ready by the time
+ * the attention signal has finished. The engine stays bound between alerts and is shut down
+ * after {@link #IDLE_TIMEOUT_MSEC} without an alert.
+ *
+ * <p>When the engine is ready, the languages that {@link CellBroadcastAlertService} uses for
+ * ETWS and CMAS alerts are loaded, and the result is kept so that later alerts don't have to
+ * wait for the engine to load a language.
+ *
+ * <p>All methods must be called on the main thread.
+ */
+final class CellBroadcastTtsSession implements TextToSpeech.OnInitListener {
+    private static final String TAG = "CellBroadcastTtsSession";
+
+    /** Time without an alert before the engine is shut down. */
+    private static final long IDLE_TIMEOUT_MSEC = 5 * 60 * 1000;
+
+    /** Languages forced for ETWS and CMAS alerts, loaded when the engine is ready. */
+    private static final String[] PRELOAD_LANGUAGES = {"ja", "en"};
+
+    /** Client of the session, called on the main thread. */
+    interface Listener {
+        /** The engine is ready to speak. */
+        void onEngineReady();
+
+        /** The utterance passed to {@link #speak} has finished or failed. */
+        void onSpeechDone();
+
+        /**
+         * The text passed to {@link #synthesizeToFile} has been written.
+         * @param success false if synthesis failed or was stopped
+         */
+        void onSynthesisDone(boolean success);
+    }
+
+    /** Prefix of the utterance IDs for {@link #synthesizeToFile}. */
+    private static final String SYNTHESIS_ID_PREFIX = "synthesis-";
+
+    private static CellBroadcastTtsSession sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private TextToSpeech mTts;
+    private boolean mEngineReady;
+
+    /** Language support by language code, from {@link TextToSpeech#setLanguage}. */
+    private final HashMap<String, Boolean> mLanguageSupported = new HashMap<String, Boolean>();
+
+    /** Language currently set on the engine; "" for the default language. */
+    private String mCurrentLanguage;
+
+    private Listener mListener;
+
+    /** Utterance ID of the current utterance, to ignore callbacks for earlier ones. */
+    private int mUtteranceId;
+
+    /** Utterance ID of the current synthesis to file. */
+    private int mSynthesisId;
+
+    /** Time {@link #prepare} was called while the engine was not ready, or 0. */
+    private long mPrepareTime;
+
+    // Time for the engine to become ready after an alert, for dumpsys.
+    private int mReadyCount;
+    private int mWarmCount;
+    private long mTotalReadyMillis;
+    private long mMaxReadyMillis;
+
+    private final Runnable mIdleShutdown = new Runnable() {
+        @Override
+        public void run() {
+            if (DBG) Log.d(TAG, "shutting down idle TTS engine");
+            shutdown();
+        }
+    };
+
+    private CellBroadcastTtsSession(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    static CellBroadcastTtsSession getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CellBroadcastTtsSession(context);
+        }
+        return sInstance;
+    }
+
+    /** Returns the session if it was created, for dumpsys. */
+    static CellBroadcastTtsSession peekInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Bind the engine for an alert, if it is not bound already, and keep it bound until the
+     * alert has been spoken.
+     */
+    void prepare() {
+        mHandler.removeCallbacks(mIdleShutdown);
+        if (mEngineReady) {
+            if (mPrepareTime == 0) {
+                mWarmCount++;
+                recordReady(0);
+            }
+            return;
+        }
+        bind();
+        // Schedule the shutdown in case no alert is spoken, e.g. the audio service
+        // decided to stay silent.
+        mHandler.postDelayed(mIdleShutdown, IDLE_TIMEOUT_MSEC);
+    }
+
+    /**
+     * Attach the listener for the alert being played, binding the engine if needed.
+     * @param listener the listener to call when the engine is ready and speech is done
+     */
+    void acquire(Listener listener) {
+        mListener = listener;
+        mHandler.removeCallbacks(mIdleShutdown);
+        if (!mEngineReady) {
+            bind();
+        }
+    }
+
+    private void bind() {
+        if (mPrepareTime == 0) {
+            mPrepareTime = SystemClock.elapsedRealtime();
+        }
+        if (mTts == null) {
+            if (DBG) Log.d(TAG, "binding TTS engine");
+            mTts = new TextToSpeech(mContext, this);
+            mTts.setOnUtteranceProgressListener(mProgressListener);
+        }
+    }
+
+    /**
+     * Stop speaking for the listener and shut the engine down if no other alert arrives
+     * within the idle timeout.
+     */
+    void release(Listener listener) {
+        if (mListener != listener) {
+            return;
+        }
+        mListener = null;
+        stopSpeaking();
+        mHandler.removeCallbacks(mIdleShutdown);
+        mHandler.postDelayed(mIdleShutdown, IDLE_TIMEOUT_MSEC);
+    }
+
+    /** Stop the current utterance without calling {@link Listener#onSpeechDone}. */
+    void stopSpeaking() {
+        mUtteranceId++;
+        if (mTts != null && mEngineReady) {
+            try {
+                mTts.stop();
+            } catch (IllegalStateException e) {
+                // catch "Unable to retrieve AudioTrack pointer for stop()" exception
+                Log.e(TAG, "exception trying to stop text-to-speech");
+            }
+        }
+    }
+
+    boolean isEngineReady() {
+        return mEngineReady;
+    }
+
+    /**
+     * Set the engine language for the next utterance.
+     * @param language the language code, or null to use the default language
+     * @return true if the language is supported
+     */
+    boolean setLanguage(String language) {
+        if (!mEngineReady) {
+            return false;
+        }
+        if (language == null) {
+            // use the default TTS language for broadcasts with no language specified
+            if (DBG) Log.d(TAG, "No language specified in broadcast: using default");
+            if (!"".equals(mCurrentLanguage)) {
+                mTts.setLanguage(Locale.getDefault());
+                mCurrentLanguage = "";
+            }
+            return true;
+        }
+        if (language.equals(mCurrentLanguage)) {
+            return true;
+        }
+        if (Boolean.FALSE.equals(mLanguageSupported.get(language))) {
+            return false;   // the engine doesn't change its mind until it is shut down
+        }
+        return loadLanguage(language);
+    }
+
+    private boolean loadLanguage(String language) {
+        if (DBG) Log.d(TAG, "Setting TTS language to '" + language + '\'');
+        int result = mTts.setLanguage(new Locale(language));
+        // success values are >= 0, failure returns negative value
+        if (DBG) Log.d(TAG, "TTS setLanguage() returned: " + result);
+        boolean supported = result >= 0;
+        mLanguageSupported.put(language, supported);
+        if (supported) {
+            mCurrentLanguage = language;
+        }
+        return supported;
+    }
+
+    /**
+     * Speak the text in the language set by {@link #setLanguage}. The listener's
+     * {@link Listener#onSpeechDone} is called when done.
+     */
+    void speak(String text) {
+        if (!mEngineReady) {
+            Log.e(TAG, "speak() called before the TTS engine is ready");
+            return;
+        }
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, Integer.toString(++mUtteranceId));
+        mTts.speak(text, TextToSpeech.QUEUE_FLUSH, params);
+    }
+
+    /**
+     * Synthesize the text in the language set by {@link #setLanguage} to an audio file.
+     * The listener's {@link Listener#onSynthesisDone} is called when done. Stopping the
+     * speech also stops the synthesis.
+     * @return true if the synthesis was queued
+     */
+    boolean synthesizeToFile(String text, File file) {
+        if (!mEngineReady) {
+            return false;
+        }
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID,
+                SYNTHESIS_ID_PREFIX + (++mSynthesisId));
+        return mTts.synthesizeToFile(text, params, file.getAbsolutePath())
+                == TextToSpeech.SUCCESS;
+    }
+
+    /** Ignore the result of the current synthesis to file. */
+    void cancelSynthesis() {
+        mSynthesisId++;
+    }
+
+    /**
+     * Callback from TTS engine after initialization.
+     * @param status {@link TextToSpeech#SUCCESS} or {@link TextToSpeech#ERROR}.
+     */
+    @Override
+    public void onInit(int status) {
+        if (DBG) Log.d(TAG, "onInit() TTS engine status: " + status);
+        if (mTts == null) {
+            return;     // shut down before the engine was bound
+        }
+        if (status != TextToSpeech.SUCCESS) {
+            Log.e(TAG, "onInit() TTS engine error: " + status);
+            shutdown();     // release the binding to the engine
+            return;
+        }
+
+        mEngineReady = true;
+        for (String language : PRELOAD_LANGUAGES) {
+            loadLanguage(language);
+        }
+        if (mPrepareTime != 0) {
+            recordReady(SystemClock.elapsedRealtime() - mPrepareTime);
+        }
+        if (mListener != null) {
+            mListener.onEngineReady();
+        }
+    }
+
+    private void recordReady(long millis) {
+        mPrepareTime = 0;
+        mReadyCount++;
+        mTotalReadyMillis += millis;
+        if (millis > mMaxReadyMillis) {
+            mMaxReadyMillis = millis;
+        }
+        Log.d(TAG, "TTS engine ready " + millis + "ms after alert");
+    }
+
+    private final UtteranceProgressListener mProgressListener = new UtteranceProgressListener() {
+        @Override
+        public void onStart(String utteranceId) {
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            postUtteranceDone(utteranceId, true);
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            Log.e(TAG, "error speaking utterance " + utteranceId);
+            postUtteranceDone(utteranceId, false);
+        }
+    };
+
+    /** Called on a binder thread by the engine; forward to the listener on the main thread. */
+    private void postUtteranceDone(final String utteranceId, final boolean success) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener == null) {
+                    return;
+                }
+                if ((SYNTHESIS_ID_PREFIX + mSynthesisId).equals(utteranceId)) {
+                    mSynthesisId++;     // report each synthesis once
+                    mListener.onSynthesisDone(success);
+                } else if (Integer.toString(mUtteranceId).equals(utteranceId)) {
+                    mListener.onSpeechDone();
+                }
+            }
+        });
+    }
+
+    private void shutdown() {
+        if (mTts != null) {
+            try {
+                mTts.shutdown();
+            } catch (IllegalStateException e) {
+                // catch "Unable to retrieve AudioTrack pointer for stop()" exception
+                Log.e(TAG, "exception trying to shutdown text-to-speech");
+            }
+        }
+        mTts = null;
+        mEngineReady = false;
+        mCurrentLanguage = null;
+        mLanguageSupported.clear();
+        mPrepareTime = 0;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" TTS engine: " + (mEngineReady ? "ready" : (mTts != null ? "binding"
+                : "not bound")) + " languages=" + mLanguageSupported);
+        pw.println(" time to TTS engine ready: count=" + mReadyCount + " warm=" + mWarmCount
+                + " avg=" + (mReadyCount > 0 ? mTotalReadyMillis / mReadyCount : 0)
+                + "ms max=" + mMaxReadyMillis + "ms");
+    }
+}
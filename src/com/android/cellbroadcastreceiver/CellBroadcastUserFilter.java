@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Snapshot of the user's alert type preferences for each phone, as a bitmask of the
+ * {@code FILTER_*} flags. The masks are rebuilt from the per-phone preferences written by
+ * {@link CellBroadcastSettings} whenever one of them changes, and replaced as a whole, so
+ * {@link CellBroadcastAlertService} can filter a message with a bit test.
+ */
+final class CellBroadcastUserFilter {
+    private static final String TAG = "CellBroadcastUserFilter";
+
+    static final int FILTER_ETWS_TEST = 1 << 0;
+    static final int FILTER_CMAS_EXTREME_THREAT = 1 << 1;
+    static final int FILTER_CMAS_SEVERE_THREAT = 1 << 2;
+    static final int FILTER_CMAS_AMBER = 1 << 3;
+    static final int FILTER_CMAS_TEST = 1 << 4;
+    static final int FILTER_CHANNEL_50 = 1 << 5;
+
+    /** Mask for a phone whose preferences were not loaded, matching res/xml/preferences.xml. */
+    private static final int DEFAULT_MASK = FILTER_CMAS_EXTREME_THREAT
+            | FILTER_CMAS_SEVERE_THREAT | FILTER_CMAS_AMBER | FILTER_CHANNEL_50;
+
+    /** Preference keys (without the phone ID suffix) that affect the masks. */
+    private static final String[] FILTER_KEYS = {
+            CellBroadcastSettings.KEY_ENABLE_ETWS_TEST_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_CMAS_TEST_ALERTS,
+            CellBroadcastSettings.KEY_ENABLE_CHANNEL_50_ALERTS,
+    };
+
+    /** Mask for each phone ID. The array is never modified once published. */
+    private static volatile int[] sMasks = new int[0];
+
+    private static int sPhoneCount;
+
+    /** Kept here because SharedPreferences only holds a weak reference to listeners. */
+    private static SharedPreferences.OnSharedPreferenceChangeListener sListener;
+
+    private CellBroadcastUserFilter() {}
+
+    /** Build the masks and rebuild them when the preferences change. Called on app start. */
+    static void init(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        sPhoneCount = TelephonyManager.getDefault().getPhoneCount();
+        sListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                for (String filterKey : FILTER_KEYS) {
+                    if (key.startsWith(filterKey)) {
+                        rebuild(prefs);
+                        return;
+                    }
+                }
+            }
+        };
+        prefs.registerOnSharedPreferenceChangeListener(sListener);
+        rebuild(prefs);
+    }
+
+    private static void rebuild(SharedPreferences prefs) {
+        int[] masks = new int[sPhoneCount];
+        for (int phoneId = 0; phoneId < masks.length; phoneId++) {
+            int mask = 0;
+            if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_ETWS_TEST_ALERTS
+                    + phoneId, false)) {
+                mask |= FILTER_ETWS_TEST;
+            }
+            if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_EXTREME_THREAT_ALERTS
+                    + phoneId, true)) {
+                mask |= FILTER_CMAS_EXTREME_THREAT;
+            }
+            if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_SEVERE_THREAT_ALERTS
+                    + phoneId, true)) {
+                mask |= FILTER_CMAS_SEVERE_THREAT;
+            }
+            if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_AMBER_ALERTS
+                    + phoneId, true)) {
+                mask |= FILTER_CMAS_AMBER;
+            }
+            if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_CMAS_TEST_ALERTS
+                    + phoneId, false)) {
+                mask |= FILTER_CMAS_TEST;
+            }
+            if (prefs.getBoolean(CellBroadcastSettings.KEY_ENABLE_CHANNEL_50_ALERTS
+                    + phoneId, true)) {
+                mask |= FILTER_CHANNEL_50;
+            }
+            masks[phoneId] = mask;
+            if (CellBroadcastReceiver.DBG) {
+                Log.d(TAG, "filter mask for phone " + phoneId + ": 0x"
+                        + Integer.toHexString(mask));
+            }
+        }
+        sMasks = masks;
+    }
+
+    /**
+     * Returns the filter mask for a phone.
+     * @param phoneId the phone that received the message
+     * @return a combination of the FILTER_* flags enabled by the user
+     */
+    static int getMask(int phoneId) {
+        int[] masks = sMasks;
+        return (phoneId >= 0 && phoneId < masks.length) ? masks[phoneId] : DEFAULT_MASK;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.telephony.SmsManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for the channel ranges {@link CellBroadcastChannelConfig#apply} sends to the radio.
+ */
+@SmallTest
+public class CellBroadcastChannelConfigTest extends TestCase {
+    private static final int GSM = SmsManager.CELL_BROADCAST_RAN_TYPE_GSM;
+    private static final int CDMA = SmsManager.CELL_BROADCAST_RAN_TYPE_CDMA;
+
+    /** Records the calls as "+ranType:start-end" and "-ranType:start-end". */
+    private static final class FakeRadio implements CellBroadcastChannelConfig.Radio {
+        final ArrayList<String> mCalls = new ArrayList<String>();
+        String mFailingRange;
+
+        @Override
+        public boolean enableCellBroadcastRange(int startMessageId, int endMessageId,
+                int ranType) {
+            String range = ranType + ":" + startMessageId + '-' + endMessageId;
+            mCalls.add('+' + range);
+            return !range.equals(mFailingRange);
+        }
+
+        @Override
+        public boolean disableCellBroadcastRange(int startMessageId, int endMessageId,
+                int ranType) {
+            mCalls.add("-" + ranType + ':' + startMessageId + '-' + endMessageId);
+            return true;
+        }
+    }
+
+    private FakeRadio mRadio;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRadio = new FakeRadio();
+    }
+
+    private void assertCalls(String... calls) {
+        assertEquals(Arrays.asList(calls), mRadio.mCalls);
+        mRadio.mCalls.clear();
+    }
+
+    /** Returns a configuration with the presidential to test CMAS alerts enabled. */
+    private static CellBroadcastChannelConfig makeCmasConfig(int lastMessageId) {
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
+        config.enableCellBroadcastRange(4370, lastMessageId, GSM);
+        config.enableCellBroadcast(50, GSM);
+        return config;
+    }
+
+    public void testUnchangedRunsAreNotSent() {
+        CellBroadcastChannelConfig applied = makeCmasConfig(4379).apply(mRadio, null);
+        mRadio.mCalls.clear();
+
+        makeCmasConfig(4379).apply(mRadio, applied);
+        assertCalls();
+    }
+
+    public void testChangedRunIsEnabledBeforeOldRunIsDisabled() {
+        CellBroadcastChannelConfig applied = makeCmasConfig(4379).apply(mRadio, null);
+        mRadio.mCalls.clear();
+
+        applied = makeCmasConfig(4382).apply(mRadio, applied);
+        assertCalls("+" + GSM + ":4370-4382", "-" + GSM + ":4370-4379");
+
+        // the result is the new configuration
+        makeCmasConfig(4382).apply(mRadio, applied);
+        assertCalls();
+    }
+
+    public void testRemovedRunIsDisabled() {
+        CellBroadcastChannelConfig config = makeCmasConfig(4379);
+        config.enableCellBroadcastRange(919, 928, GSM);
+        CellBroadcastChannelConfig applied = config.apply(mRadio, null);
+        mRadio.mCalls.clear();
+
+        config = makeCmasConfig(4379);
+        config.disableCellBroadcastRange(919, 928, GSM);
+        config.apply(mRadio, applied);
+        assertCalls("-" + GSM + ":919-928");
+    }
+
+    public void testSplitRunIsEnabledBeforeOldRunIsDisabled() {
+        CellBroadcastChannelConfig applied = makeCmasConfig(4382).apply(mRadio, null);
+        mRadio.mCalls.clear();
+
+        CellBroadcastChannelConfig config = makeCmasConfig(4382);
+        config.disableCellBroadcast(4375, GSM);
+        config.apply(mRadio, applied);
+        assertCalls("+" + GSM + ":4370-4374", "+" + GSM + ":4376-4382",
+                "-" + GSM + ":4370-4382");
+    }
+
+    public void testOldRunIsKeptWhenNewRunFails() {
+        CellBroadcastChannelConfig applied = makeCmasConfig(4379).apply(mRadio, null);
+        mRadio.mCalls.clear();
+
+        mRadio.mFailingRange = GSM + ":4370-4382";
+        applied = makeCmasConfig(4382).apply(mRadio, applied);
+        assertCalls("+" + GSM + ":4370-4382");
+
+        // the next run tries again, and disables the old run once the new run is enabled
+        mRadio.mFailingRange = null;
+        makeCmasConfig(4382).apply(mRadio, applied);
+        assertCalls("+" + GSM + ":4370-4382", "-" + GSM + ":4370-4379");
+    }
+
+    public void testUnknownAppliedEnablesRunsThenDisablesOtherRanges() {
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
+        config.enableCellBroadcast(4370, GSM);
+        config.enableCellBroadcastRange(4371, 4379, GSM);
+        config.disableCellBroadcast(50, GSM);
+        config.enableCellBroadcast(4098, CDMA);
+
+        CellBroadcastChannelConfig applied = config.apply(mRadio, null);
+        assertCalls("+" + GSM + ":4370-4379", "+" + CDMA + ":4098-4098",
+                "-" + GSM + ":4370-4370", "-" + GSM + ":4371-4379", "-" + GSM + ":50-50");
+
+        config.apply(mRadio, applied);
+        assertCalls();
+    }
+
+    public void testUnknownAppliedKeepsRangesOfFailedRun() {
+        CellBroadcastChannelConfig config = new CellBroadcastChannelConfig();
+        config.enableCellBroadcast(4370, GSM);
+        config.enableCellBroadcastRange(4371, 4379, GSM);
+        config.disableCellBroadcast(50, GSM);
+
+        mRadio.mFailingRange = GSM + ":4370-4379";
+        config.apply(mRadio, null);
+        assertCalls("+" + GSM + ":4370-4379", "-" + GSM + ":50-50");
+    }
+}
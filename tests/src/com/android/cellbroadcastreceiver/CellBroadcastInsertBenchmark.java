@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbCmasInfo;
+import android.telephony.SmsCbEtwsInfo;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Micro-benchmark for writing new broadcasts to the database. Inserts the same broadcasts
+ * through the compiled insert statement of {@link CellBroadcastContentProvider}, bound from
+ * the fields of each message, and through {@link CellBroadcastMessage#getContentValues} and
+ * {@link SQLiteDatabase#insert}, which builds a map per message and compiles the insert from
+ * its keys, and checks that both write the same rows.
+ *
+ * <p>The insert rate of each path is logged for comparison across devices; only the written
+ * rows are checked.
+ */
+@LargeTest
+public class CellBroadcastInsertBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "CellBroadcastInsertBenchmark";
+
+    private static final int MESSAGE_COUNT = 2000;
+
+    /** Broadcasts per transaction, as written by the insert queue. */
+    private static final int BATCH_SIZE = 20;
+
+    private CellBroadcastDatabaseHelper mHelper;
+    private SQLiteDatabase mStatementDb;
+    private SQLiteDatabase mContentValuesDb;
+    private SmsCbMessage[] mSmsCbMessages;
+    private CellBroadcastMessage[] mMessages;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHelper = new CellBroadcastDatabaseHelper(getInstrumentation().getTargetContext());
+        mStatementDb = SQLiteDatabase.create(null);
+        mContentValuesDb = SQLiteDatabase.create(null);
+        mHelper.onCreate(mStatementDb);
+        mHelper.onCreate(mContentValuesDb);
+
+        mSmsCbMessages = new SmsCbMessage[MESSAGE_COUNT];
+        mMessages = new CellBroadcastMessage[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            mSmsCbMessages[i] = makeMessage(i);
+            mMessages[i] = new CellBroadcastMessage(mSmsCbMessages[i]);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStatementDb.close();
+        mContentValuesDb.close();
+        super.tearDown();
+    }
+
+    /** Returns a mix of CMAS, ETWS and other broadcasts, with and without a full location. */
+    private static SmsCbMessage makeMessage(int i) {
+        SmsCbLocation location = (i % 2 == 0) ? new SmsCbLocation("310260")
+                : new SmsCbLocation("310260", 1000 + i % 7, 20000 + i);
+        String body = "Test broadcast " + i + ": this is a test of the emergency alert system. "
+                + "This is only a test.";
+        switch (i % 3) {
+            case 0:
+                SmsCbCmasInfo cmasInfo = new SmsCbCmasInfo(
+                        SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT, SmsCbCmasInfo.CMAS_CATEGORY_MET,
+                        SmsCbCmasInfo.CMAS_RESPONSE_TYPE_SHELTER,
+                        SmsCbCmasInfo.CMAS_SEVERITY_SEVERE, SmsCbCmasInfo.CMAS_URGENCY_EXPECTED,
+                        SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY);
+                return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP,
+                        SmsCbMessage.GEOGRAPHICAL_SCOPE_CELL_WIDE, i & 0xffff, location, 4371,
+                        "en", body, SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null, cmasInfo);
+            case 1:
+                SmsCbEtwsInfo etwsInfo = new SmsCbEtwsInfo(
+                        SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE, true, true, null);
+                return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP,
+                        SmsCbMessage.GEOGRAPHICAL_SCOPE_PLMN_WIDE, i & 0xffff, location, 4352,
+                        "ja", body, SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, etwsInfo, null);
+            default:
+                return new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP2,
+                        SmsCbMessage.GEOGRAPHICAL_SCOPE_PLMN_WIDE, i & 0xffff, location, 50,
+                        null, body, SmsCbMessage.MESSAGE_PRIORITY_NORMAL, null, null);
+        }
+    }
+
+    public void testInsert() {
+        // warm up both paths, then write every broadcast through each
+        insertWithStatement(0, MESSAGE_COUNT / 2);
+        insertWithContentValues(0, MESSAGE_COUNT / 2);
+
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        insertWithStatement(MESSAGE_COUNT / 2, MESSAGE_COUNT);
+        long statementNanos = SystemClock.elapsedRealtimeNanos() - startTime;
+
+        startTime = SystemClock.elapsedRealtimeNanos();
+        insertWithContentValues(MESSAGE_COUNT / 2, MESSAGE_COUNT);
+        long contentValuesNanos = SystemClock.elapsedRealtimeNanos() - startTime;
+
+        int count = MESSAGE_COUNT - MESSAGE_COUNT / 2;
+        Log.i(TAG, "insert " + count + " broadcasts: compiled statement "
+                + (statementNanos / 1000000) + "ms (" + (statementNanos / count)
+                + "ns/row), ContentValues " + (contentValuesNanos / 1000000) + "ms ("
+                + (contentValuesNanos / count) + "ns/row)");
+
+        assertSameRows();
+    }
+
+    private void insertWithStatement(int start, int end) {
+        SQLiteStatement insert = mStatementDb.compileStatement(
+                CellBroadcastContentProvider.INSERT_SQL);
+        try {
+            for (int batch = start; batch < end; batch += BATCH_SIZE) {
+                mStatementDb.beginTransaction();
+                try {
+                    for (int i = batch; i < Math.min(batch + BATCH_SIZE, end); i++) {
+                        assertTrue(CellBroadcastContentProvider.insertBroadcast(insert,
+                                mSmsCbMessages[i], mMessages[i].getDeliveryTime(),
+                                mMessages[i].isRead()) != -1);
+                    }
+                    mStatementDb.setTransactionSuccessful();
+                } finally {
+                    mStatementDb.endTransaction();
+                }
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private void insertWithContentValues(int start, int end) {
+        for (int batch = start; batch < end; batch += BATCH_SIZE) {
+            mContentValuesDb.beginTransaction();
+            try {
+                for (int i = batch; i < Math.min(batch + BATCH_SIZE, end); i++) {
+                    assertTrue(mContentValuesDb.insert(CellBroadcastDatabaseHelper.TABLE_NAME,
+                            null, mMessages[i].getContentValues()) != -1);
+                }
+                mContentValuesDb.setTransactionSuccessful();
+            } finally {
+                mContentValuesDb.endTransaction();
+            }
+        }
+    }
+
+    /** Both paths must write the same values, including nulls, to every column. */
+    private void assertSameRows() {
+        Cursor expected = mContentValuesDb.query(CellBroadcastDatabaseHelper.TABLE_NAME,
+                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null, null, null,
+                Telephony.CellBroadcasts._ID);
+        Cursor actual = mStatementDb.query(CellBroadcastDatabaseHelper.TABLE_NAME,
+                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null, null, null,
+                Telephony.CellBroadcasts._ID);
+        try {
+            assertEquals(MESSAGE_COUNT, expected.getCount());
+            assertEquals(MESSAGE_COUNT, actual.getCount());
+            while (expected.moveToNext()) {
+                assertTrue(actual.moveToNext());
+                for (int c = 0; c < expected.getColumnCount(); c++) {
+                    String column = expected.getColumnName(c);
+                    assertEquals(column, expected.getType(c), actual.getType(c));
+                    assertEquals(column, expected.getString(c), actual.getString(c));
+                }
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+}
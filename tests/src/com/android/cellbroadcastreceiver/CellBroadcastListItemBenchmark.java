@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Typeface;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.telephony.CellBroadcastMessage;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.format.DateUtils;
+import android.text.style.StyleSpan;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.CursorAdapter;
+import android.widget.TextView;
+
+/**
+ * Benchmark for scrolling the broadcast list. Binds a 10,000 row cursor into a screen's worth
+ * of recycled list items with {@link CellBroadcastCursorAdapter#getView}, and with an adapter
+ * that binds the same views the way the list did before the rendering caches.
+ *
+ * <p>Both times go to the log; nothing is asserted about them. Run with
+ * {@code -e class com.android.cellbroadcastreceiver.CellBroadcastListItemBenchmark}.
+ */
+@LargeTest
+public class CellBroadcastListItemBenchmark extends InstrumentationTestCase {
+    private static final String TAG = "CellBroadcastListItemBenchmark";
+
+    private static final int ROW_COUNT = 10000;
+
+    /** Number of recycled views, about one screen of rows. */
+    private static final int VIEW_COUNT = 12;
+
+    private static final int DATE_FLAGS = DateUtils.FORMAT_NO_NOON_MIDNIGHT
+            | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_ALL
+            | DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_CAP_AMPM;
+
+    private Context mContext;
+    private MatrixCursor mCursor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mCursor = new MatrixCursor(Telephony.CellBroadcasts.QUERY_COLUMNS, ROW_COUNT);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            mCursor.addRow(makeRow(i, now - i * 37 * 1000L));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCursor.close();
+        super.tearDown();
+    }
+
+    private static Object[] makeRow(int i, long deliveryTime) {
+        String[] columns = Telephony.CellBroadcasts.QUERY_COLUMNS;
+        Object[] row = new Object[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            String column = columns[c];
+            if (Telephony.CellBroadcasts._ID.equals(column)) {
+                row[c] = i + 1;
+            } else if (Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE.equals(column)
+                    || Telephony.CellBroadcasts.MESSAGE_FORMAT.equals(column)
+                    || Telephony.CellBroadcasts.MESSAGE_PRIORITY.equals(column)) {
+                row[c] = (i % 5 == 0) ? 3 : 1;
+            } else if (Telephony.CellBroadcasts.SERIAL_NUMBER.equals(column)) {
+                row[c] = i & 0xffff;
+            } else if (Telephony.CellBroadcasts.SERVICE_CATEGORY.equals(column)) {
+                row[c] = 4370 + (i % 13);
+            } else if (Telephony.CellBroadcasts.LANGUAGE_CODE.equals(column)) {
+                row[c] = "en";
+            } else if (Telephony.CellBroadcasts.MESSAGE_BODY.equals(column)) {
+                row[c] = "Test broadcast " + i + ": this is a test of the emergency alert "
+                        + "system. This is only a test.";
+            } else if (Telephony.CellBroadcasts.DELIVERY_TIME.equals(column)) {
+                row[c] = deliveryTime;
+            } else if (Telephony.CellBroadcasts.MESSAGE_READ.equals(column)) {
+                row[c] = i % 3 == 0 ? 0 : 1;
+            } else if (Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS.equals(column)) {
+                row[c] = (i % 13 < 5) ? (i % 5) : null;
+            }
+        }
+        return row;
+    }
+
+    public void testBindRows() {
+        CellBroadcastCursorAdapter adapter = new CellBroadcastCursorAdapter(mContext, mCursor);
+        View[] views = new View[VIEW_COUNT];
+        for (int i = 0; i < VIEW_COUNT; i++) {
+            views[i] = adapter.getView(i, null, null);
+        }
+
+        // warm up, then bind every row into a recycled view
+        bindAll(adapter, views);
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        bindAll(adapter, views);
+        long cachedNanos = SystemClock.elapsedRealtimeNanos() - startTime;
+
+        UncachedCursorAdapter uncachedAdapter = new UncachedCursorAdapter(mContext, mCursor);
+        View[] uncachedViews = new View[VIEW_COUNT];
+        for (int i = 0; i < VIEW_COUNT; i++) {
+            uncachedViews[i] = uncachedAdapter.getView(i, null, null);
+        }
+        bindAll(uncachedAdapter, uncachedViews);
+        startTime = SystemClock.elapsedRealtimeNanos();
+        bindAll(uncachedAdapter, uncachedViews);
+        long uncachedNanos = SystemClock.elapsedRealtimeNanos() - startTime;
+
+        Log.i(TAG, "bind " + ROW_COUNT + " rows: " + (cachedNanos / 1000000) + "ms ("
+                + (cachedNanos / ROW_COUNT) + "ns/row), without caches: "
+                + (uncachedNanos / 1000000) + "ms (" + (uncachedNanos / ROW_COUNT) + "ns/row)");
+
+        // the cached date must match the formatted date
+        View view = adapter.getView(ROW_COUNT - 1, views[0], null);
+        mCursor.moveToPosition(ROW_COUNT - 1);
+        String expected = DateUtils.formatDateTime(mContext, mCursor.getLong(
+                mCursor.getColumnIndexOrThrow(Telephony.CellBroadcasts.DELIVERY_TIME)),
+                DATE_FLAGS);
+        assertEquals(expected, ((TextView) view.findViewById(R.id.date)).getText().toString());
+    }
+
+    private void bindAll(CursorAdapter adapter, View[] views) {
+        for (int i = 0; i < ROW_COUNT; i++) {
+            adapter.getView(i, views[i % VIEW_COUNT], null);
+        }
+    }
+
+    /**
+     * Binds list items as the list did before the rendering caches: a message is created for
+     * every row, the background drawable is loaded, a bold copy of the body is built and the
+     * date is formatted each time a row is bound.
+     */
+    private static final class UncachedCursorAdapter extends CursorAdapter {
+        UncachedCursorAdapter(Context context, Cursor cursor) {
+            super(context, cursor, 0);
+        }
+
+        @Override
+        public View newView(Context context, Cursor cursor, ViewGroup parent) {
+            View view = LayoutInflater.from(context).inflate(
+                    R.layout.cell_broadcast_list_item, parent, false);
+            bindView(view, context, cursor);
+            return view;
+        }
+
+        @Override
+        public void bindView(View view, Context context, Cursor cursor) {
+            CellBroadcastMessage message = CellBroadcastMessage.createFromCursor(cursor);
+            view.setBackground(context.getResources().getDrawable(message.isRead()
+                    ? R.drawable.list_item_background_read
+                    : R.drawable.list_item_background_unread));
+            ((TextView) view.findViewById(R.id.channel)).setText(
+                    CellBroadcastResources.getDialogTitleResource(message));
+            ((TextView) view.findViewById(R.id.date)).setText(message.getDateString(context));
+            SpannableStringBuilder body = new SpannableStringBuilder(message.getMessageBody());
+            if (!message.isRead()) {
+                body.setSpan(new StyleSpan(Typeface.BOLD), 0, body.length(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            ((TextView) view.findViewById(R.id.message)).setText(body);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Tests for {@link CellBroadcastMessageIdCache}: the open-addressing hash table, the FIFO
+ * queue and its memory-mapped file, and expiry of message IDs.
+ */
+@SmallTest
+public class CellBroadcastMessageIdCacheTest extends TestCase {
+    private static final long EXPIRY_MILLIS = 1000;
+
+    /** Size of the hash table of a new cache. */
+    private static final int TABLE_SIZE = 64;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("message_ids", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /** Returns the first keys from {@code start} whose home slot is {@code slot}. */
+    private static long[] keysForSlot(CellBroadcastMessageIdCache cache, int slot, int count,
+            long start) {
+        long[] keys = new long[count];
+        int found = 0;
+        for (long key = start; found < count; key++) {
+            if (cache.slot(key) == slot) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    public void testAddAndContains() {
+        CellBroadcastMessageIdCache cache = new CellBroadcastMessageIdCache(10, 0);
+        long key = CellBroadcastMessageIdCache.makeKey(4370, 0x1234, null);
+        assertFalse(cache.contains(key));
+        assertTrue(cache.add(key, 0));
+        assertTrue(cache.contains(key));
+        assertFalse(cache.add(key, 1));     // duplicate
+        assertEquals(1, cache.size());
+    }
+
+    public void testEvictsOldestWhenFull() {
+        CellBroadcastMessageIdCache cache = new CellBroadcastMessageIdCache(3, 0);
+        for (long key = 1; key <= 4; key++) {
+            assertTrue(cache.add(key, key));
+        }
+        assertEquals(3, cache.size());
+        assertFalse(cache.contains(1));
+        for (long key = 2; key <= 4; key++) {
+            assertTrue(cache.contains(key));
+        }
+        // the evicted message ID is new again
+        assertTrue(cache.add(1, 5));
+        assertFalse(cache.contains(2));
+    }
+
+    /**
+     * Keys whose probe sequences wrap from the last slot of the table to the first must still
+     * be found after the keys before them are removed, which shifts them back across the wrap.
+     */
+    public void testRemoveShiftsProbeSequenceAcrossWrap() {
+        CellBroadcastMessageIdCache cache = new CellBroadcastMessageIdCache(4, 0);
+        long[] last = keysForSlot(cache, TABLE_SIZE - 1, 2, 1);
+        long[] first = keysForSlot(cache, 0, 2, 1);
+        // slots: last[0] -> 63, last[1] -> 0, first[0] -> 1, first[1] -> 2
+        long[] keys = {last[0], last[1], first[0], first[1]};
+        for (long key : keys) {
+            assertTrue(cache.add(key, 0));
+        }
+        for (int removed = 0; removed < keys.length; removed++) {
+            // adding a new key evicts the oldest one
+            long newKey = keysForSlot(cache, TABLE_SIZE / 2, 1, 1 + removed * 1000)[0];
+            assertTrue(cache.add(newKey, 0));
+            assertFalse(cache.contains(keys[removed]));
+            for (int i = removed + 1; i < keys.length; i++) {
+                assertTrue("key " + i + " lost after removing " + removed,
+                        cache.contains(keys[i]));
+            }
+        }
+    }
+
+    public void testRemoveFromMiddleOfProbeSequence() {
+        CellBroadcastMessageIdCache cache = new CellBroadcastMessageIdCache(3, 0);
+        long[] keys = keysForSlot(cache, 10, 3, 1);
+        for (long key : keys) {
+            assertTrue(cache.add(key, 0));
+        }
+        assertTrue(cache.add(keysForSlot(cache, 40, 1, 1)[0], 0));   // evicts keys[0]
+        assertFalse(cache.contains(keys[0]));
+        assertTrue(cache.contains(keys[1]));
+        assertTrue(cache.contains(keys[2]));
+    }
+
+    public void testGrowsAndShrinks() {
+        int count = 5000;
+        CellBroadcastMessageIdCache cache = new CellBroadcastMessageIdCache(count,
+                EXPIRY_MILLIS);
+        for (int i = 1; i <= count; i++) {
+            assertTrue(cache.add(i * 0x10001L, 0));
+        }
+        assertEquals(count, cache.size());
+        for (int i = 1; i <= count; i++) {
+            assertTrue(cache.contains(i * 0x10001L));
+        }
+
+        // expire all but the last few, which shrinks the table and queue
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(cache.add(i * 0x20003L, EXPIRY_MILLIS / 2));
+        }
+        cache.expire(EXPIRY_MILLIS);
+        assertEquals(10, cache.size());
+        assertFalse(cache.contains(0x10001L));
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(cache.contains(i * 0x20003L));
+        }
+    }
+
+    public void testExpiresInReceiveOrder() {
+        CellBroadcastMessageIdCache cache = new CellBroadcastMessageIdCache(10, EXPIRY_MILLIS);
+        cache.add(1, 0);
+        cache.add(2, 500);
+        cache.add(3, 900);
+
+        cache.expire(EXPIRY_MILLIS - 1);
+        assertEquals(3, cache.size());
+
+        cache.expire(EXPIRY_MILLIS);
+        assertFalse(cache.contains(1));
+        assertTrue(cache.contains(2));
+        assertTrue(cache.contains(3));
+
+        // add() expires first, so an expired message ID is new again
+        assertTrue(cache.add(2, 1500));
+        assertEquals(2, cache.size());
+        assertFalse(cache.add(3, 1500));
+    }
+
+    public void testExpiresByAgeAfterClockMovesBack() {
+        CellBroadcastMessageIdCache cache = new CellBroadcastMessageIdCache(10, EXPIRY_MILLIS);
+        cache.add(1, 10000);
+        cache.add(2, 10500);
+
+        // the clock is set back 5500 ms: the saved IDs keep their ages of 500 and 0 ms
+        assertTrue(cache.add(3, 5000));
+        assertEquals(3, cache.size());
+
+        cache.expire(5500);
+        assertFalse(cache.contains(1));
+        assertTrue(cache.contains(2));
+        assertTrue(cache.contains(3));
+
+        cache.expire(6000);
+        assertEquals(0, cache.size());
+    }
+
+    public void testExpiresByAgeAfterClockMovesBackInFile() {
+        CellBroadcastMessageIdCache cache = CellBroadcastMessageIdCache.open(mFile, 4,
+                EXPIRY_MILLIS);
+        cache.add(1, 10000);
+        cache.add(2, 10500);
+        cache.expire(5000);
+
+        cache = CellBroadcastMessageIdCache.open(mFile, 4, EXPIRY_MILLIS);
+        cache.expire(5500);
+        assertFalse(cache.contains(1));
+        assertTrue(cache.contains(2));
+    }
+
+    public void testNeverExpires() {
+        CellBroadcastMessageIdCache cache = new CellBroadcastMessageIdCache(10, 0);
+        cache.add(1, 0);
+        cache.expire(Long.MAX_VALUE);
+        assertTrue(cache.contains(1));
+    }
+
+    public void testReloadsFromFile() {
+        CellBroadcastMessageIdCache cache = CellBroadcastMessageIdCache.open(mFile, 4,
+                EXPIRY_MILLIS);
+        // six message IDs in a queue of four wrap around the end of the file
+        for (long key = 1; key <= 6; key++) {
+            assertTrue(cache.add(key, key));
+        }
+
+        cache = CellBroadcastMessageIdCache.open(mFile, 4, EXPIRY_MILLIS);
+        assertEquals(4, cache.size());
+        assertFalse(cache.contains(1));
+        assertFalse(cache.contains(2));
+        for (long key = 3; key <= 6; key++) {
+            assertTrue(cache.contains(key));
+        }
+        assertFalse(cache.add(6, 7));
+
+        // the reloaded queue keeps its order and receive times
+        cache.expire(4 + EXPIRY_MILLIS);
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(5));
+        assertTrue(cache.contains(6));
+    }
+
+    public void testFileWithOtherCapacityIsReset() {
+        CellBroadcastMessageIdCache cache = CellBroadcastMessageIdCache.open(mFile, 4, 0);
+        cache.add(1, 0);
+        cache = CellBroadcastMessageIdCache.open(mFile, 8, 0);
+        assertEquals(0, cache.size());
+        assertTrue(cache.add(1, 0));
+    }
+}